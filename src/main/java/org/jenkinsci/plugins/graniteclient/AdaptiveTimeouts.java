@@ -0,0 +1,145 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks recent latencies of package manager operations per server and operation type in this JVM, and derives
+ * request timeouts from them for clients configured with automatic timeouts. A timeout is a multiple of the 99th
+ * percentile of the recent latencies, bounded by a floor and a ceiling. The latencies of uploads and downloads are
+ * tracked per MB instead, so that their timeouts scale with the size of the package. Until enough latencies have been
+ * seen, the configured timeout is used instead.
+ */
+final class AdaptiveTimeouts {
+
+    static final double P99_MULTIPLIER = 3.0D;
+    static final long FLOOR_MS = 10000L;
+    static final long CEILING_MS = 3600000L;
+    static final int WINDOW_SIZE = 100;
+    static final int MIN_SAMPLES = 10;
+
+    private static final long MB = 1024L * 1024L;
+    private static final String PER_MB = "/MB";
+
+    private static final ConcurrentMap<String, Window> WINDOWS = new ConcurrentHashMap<String, Window>();
+
+    private AdaptiveTimeouts() {
+    }
+
+    private static Window getWindow(String baseUrl, String operation) {
+        String key = baseUrl + " " + operation;
+        Window window = WINDOWS.get(key);
+        if (window == null) {
+            Window newWindow = new Window();
+            window = WINDOWS.putIfAbsent(key, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Records the latency of an operation which completed or timed out.
+     */
+    static void record(String baseUrl, String operation, long latency) {
+        getWindow(baseUrl, operation).add(latency);
+    }
+
+    /**
+     * Records the latency of a transfer which completed or timed out, as milliseconds per MB. Transfers smaller than
+     * a MB count as a MB, since their latency is mostly overhead.
+     */
+    static void recordTransfer(String baseUrl, String operation, long latency, long bytes) {
+        getWindow(baseUrl, operation + PER_MB).add(Math.round(latency * (double) MB / Math.max(MB, bytes)));
+    }
+
+    /**
+     * @param configured the timeout to use when there are not enough latencies to derive one from
+     * @return the timeout in milliseconds for the next operation of the type against the server
+     */
+    static long getTimeout(String baseUrl, String operation, long configured) {
+        long p99 = getWindow(baseUrl, operation).getPercentile(0.99D);
+        if (p99 < 0L) {
+            return configured;
+        }
+        return bound(p99 * P99_MULTIPLIER);
+    }
+
+    /**
+     * @param bytes      the size of the transfer, or a negative value if it is not known
+     * @param configured the timeout to use when the size is not known or there are not enough latencies to derive one
+     *                   from
+     * @return the timeout in milliseconds for the next transfer of the type and size to or from the server
+     */
+    static long getTransferTimeout(String baseUrl, String operation, long bytes, long configured) {
+        if (bytes < 0L) {
+            return configured;
+        }
+        long p99 = getWindow(baseUrl, operation + PER_MB).getPercentile(0.99D);
+        if (p99 < 0L) {
+            return configured;
+        }
+        return bound(p99 * P99_MULTIPLIER * Math.max(MB, bytes) / MB);
+    }
+
+    private static long bound(double timeout) {
+        return Math.min(CEILING_MS, Math.max(FLOOR_MS, (long) Math.ceil(timeout)));
+    }
+
+    /**
+     * Ring buffer of the most recent latencies
+     */
+    private static final class Window {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        synchronized void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return the percentile of the recent latencies, or -1 if there are fewer than MIN_SAMPLES
+         */
+        synchronized long getPercentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1L;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
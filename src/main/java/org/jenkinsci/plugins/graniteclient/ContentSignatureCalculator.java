@@ -65,6 +65,11 @@ import java.util.logging.Logger;
 public class ContentSignatureCalculator implements SignatureCalculator {
     private static final Logger LOGGER = Logger.getLogger(ContentSignatureCalculator.class.getName());
 
+    /**
+     * Bodies are digested through a fixed-size buffer, so that the memory used is the same for any size of upload
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * {@inheritDoc}
      *
@@ -208,10 +213,12 @@ public class ContentSignatureCalculator implements SignatureCalculator {
         try {
             Path path = FileSystems.getDefault().getPath(file.getAbsolutePath());
             channel = FileChannel.open(path, StandardOpenOption.READ);
-            ByteBuffer buf = ByteBuffer.allocate(4096);
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
 
             while (channel.read(buf) >= 0) {
+                buf.flip();
                 md.update(buf);
+                buf.clear();
             }
         } finally {
             if (channel != null) {
@@ -229,10 +236,12 @@ public class ContentSignatureCalculator implements SignatureCalculator {
         try {
             body = bodyGenerator.createBody();
 
-            ByteBuffer buf = ByteBuffer.allocate(4096);
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
 
             while (body.read(buf) >= 0) {
+                buf.flip();
                 md.update(buf);
+                buf.clear();
             }
         } finally {
             if (body != null) {
@@ -31,14 +31,17 @@ import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxMode
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import net.adamcin.granite.client.packman.ACHandling;
@@ -54,6 +57,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -62,6 +66,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of the "Deploy Content Packages to CRX" build step
@@ -79,12 +92,23 @@ public class DeployPackagesBuilder extends Builder {
     private boolean disableForJobTesting;
     private long requestTimeout;
     private long serviceTimeout;
+    private String logVerbosity;
+    private int maxRetries;
+    private long retryDelay;
+    private int installErrorThreshold;
+    private String executionNode;
+    private int maxParallelHosts;
+    private boolean autoTimeouts;
+    private String resumeFrom;
+    private boolean skipUnchanged;
 
     @DataBoundConstructor
     public DeployPackagesBuilder(String packageIdFilters, String baseUrls, String credentialsId,
                                  String localDirectory, String behavior, boolean recursive,
                                  int autosave, String acHandling, boolean disableForJobTesting, long requestTimeout,
-                                 long serviceTimeout) {
+                                 long serviceTimeout, String logVerbosity, int maxRetries, long retryDelay,
+                                 int installErrorThreshold, String executionNode, int maxParallelHosts,
+                                 boolean autoTimeouts, String resumeFrom, boolean skipUnchanged) {
         this.packageIdFilters = packageIdFilters;
         this.baseUrls = baseUrls;
         this.credentialsId = credentialsId;
@@ -96,6 +120,15 @@ public class DeployPackagesBuilder extends Builder {
         this.disableForJobTesting = disableForJobTesting;
         this.requestTimeout = requestTimeout;
         this.serviceTimeout = serviceTimeout;
+        this.logVerbosity = logVerbosity;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.installErrorThreshold = installErrorThreshold;
+        this.executionNode = executionNode;
+        this.maxParallelHosts = maxParallelHosts;
+        this.autoTimeouts = autoTimeouts;
+        this.resumeFrom = resumeFrom;
+        this.skipUnchanged = skipUnchanged;
     }
 
     public String getPackageIdFilters() {
@@ -200,6 +233,82 @@ public class DeployPackagesBuilder extends Builder {
         this.serviceTimeout = serviceTimeout;
     }
 
+    public String getLogVerbosity() {
+        return logVerbosity;
+    }
+
+    public void setLogVerbosity(String logVerbosity) {
+        this.logVerbosity = logVerbosity;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public int getInstallErrorThreshold() {
+        return installErrorThreshold;
+    }
+
+    public void setInstallErrorThreshold(int installErrorThreshold) {
+        this.installErrorThreshold = installErrorThreshold;
+    }
+
+    public String getExecutionNode() {
+        return executionNode;
+    }
+
+    public void setExecutionNode(String executionNode) {
+        this.executionNode = executionNode;
+    }
+
+    public int getMaxParallelHosts() {
+        return maxParallelHosts;
+    }
+
+    public void setMaxParallelHosts(int maxParallelHosts) {
+        this.maxParallelHosts = maxParallelHosts;
+    }
+
+    public boolean isAutoTimeouts() {
+        return autoTimeouts;
+    }
+
+    public void setAutoTimeouts(boolean autoTimeouts) {
+        this.autoTimeouts = autoTimeouts;
+    }
+
+    public String getResumeFrom() {
+        if (resumeFrom != null) {
+            return resumeFrom.trim();
+        } else {
+            return "";
+        }
+    }
+
+    public void setResumeFrom(String resumeFrom) {
+        this.resumeFrom = resumeFrom;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
     public PackageInstallOptions getPackageInstallOptions() {
         ACHandling _acHandling = ACHandling.IGNORE;
         if (getAcHandling() != null) {
@@ -212,7 +321,7 @@ public class DeployPackagesBuilder extends Builder {
             }
         }
 
-        return new PackageInstallOptions(isRecursive(), getAutosave(), _acHandling);
+        return new PackageInstallOptions(isRecursive(), getAutosave(), _acHandling, getInstallErrorThreshold());
     }
 
     public ExistingPackageBehavior getExistingPackageBehavior() {
@@ -231,8 +340,26 @@ public class DeployPackagesBuilder extends Builder {
         return _behavior;
     }
 
+    public InstallLogVerbosity getInstallLogVerbosity() {
+        InstallLogVerbosity _logVerbosity = InstallLogVerbosity.FULL;
+        if (getLogVerbosity() != null) {
+            if ("summary".equalsIgnoreCase(getLogVerbosity())) {
+                _logVerbosity = InstallLogVerbosity.SUMMARY;
+            } else if ("errors".equalsIgnoreCase(getLogVerbosity())) {
+                _logVerbosity = InstallLogVerbosity.ERRORS;
+            }
+        }
+        return _logVerbosity;
+    }
+
+    public RetryPolicy getRetryPolicy(AbstractBuild<?, ?> build) {
+        return new RetryPolicy(getMaxRetries(), getRetryDelay(),
+                               GraniteAHCFactory.getFactoryInstance().getRetryBudgetPerBuild(),
+                               build.getParent().getFullName() + "#" + build.getNumber());
+    }
+
     @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, final BuildListener listener)
             throws InterruptedException, IOException {
 
         Result result = build.getResult();
@@ -244,32 +371,352 @@ public class DeployPackagesBuilder extends Builder {
             listener.getLogger().println("DEBUG: *** package deployment disabled for testing ***");
         }
 
-        for (String baseUrl : listBaseUrls(build, listener)) {
-            if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
+        Map<PackId, FilePath> selectedPackages = selectPackages(build, listener);
+        if (!disableForJobTesting) {
+            selectedPackages = PackageDependencies.sort(selectedPackages, build.getWorkspace(), listener);
+        }
+
+        // when requests are made from another node, the package files are copied there once for all servers, streaming
+        // over the channels, because the client uploads from a local file
+        FilePath executionPath = build.getWorkspace();
+        FilePath spoolDir = null;
+        Node node = ExecutionNodes.resolve(getExecutionNode());
+        if (node != null && !disableForJobTesting && !ExecutionNodes.isOn(node, executionPath)) {
+            listener.getLogger().printf("Deploying from %s%n", node.getDisplayName());
+            spoolDir = ExecutionNodes.createSpoolDir(node, "deploy");
+            executionPath = spoolDir;
+        }
+
+        try {
+            result = deploy(build, listener, result, selectedPackages, executionPath, spoolDir);
+        } finally {
+            if (spoolDir != null) {
+                spoolDir.deleteRecursive();
+            }
+        }
+
+        return result.isBetterOrEqualTo(Result.UNSTABLE);
+    }
+
+    private Result deploy(AbstractBuild<?, ?> build, final BuildListener listener, Result result,
+                          Map<PackId, FilePath> selectedPackages, final FilePath executionPath, FilePath spoolDir)
+            throws IOException, InterruptedException {
+        RetryPolicy retryPolicy = getRetryPolicy(build);
+
+        // the package files are the same for every server, so their paths are only collected once
+        Map<PackId, String> packageFiles = new LinkedHashMap<PackId, String>();
+        PackageDigests digests = new PackageDigests(selectedPackages);
+        if (!disableForJobTesting) {
+            for (Map.Entry<PackId, FilePath> selectedPackage : selectedPackages.entrySet()) {
+                FilePath packageFile = selectedPackage.getValue();
+                if (spoolDir != null) {
+                    FilePath copy = spoolDir.child(packageFiles.size() + "-" + packageFile.getName());
+                    packageFile.copyTo(copy);
+                    packageFile = copy;
+                }
+                packageFiles.put(selectedPackage.getKey(), packageFile.getRemote());
+            }
+        }
+
+        List<String> hosts = new ArrayList<String>(listBaseUrls(build, listener));
+        if (disableForJobTesting) {
+            for (String baseUrl : hosts) {
                 listener.getLogger().printf("Deploying packages to %s%n", baseUrl);
-                for (Map.Entry<PackId, FilePath> selectedPackage : selectPackages(build, listener).entrySet()) {
+                for (Map.Entry<PackId, FilePath> selectedPackage : selectedPackages.entrySet()) {
+                    result = result.combine(selectedPackage.getValue().act(
+                            new DebugPackageCallable(selectedPackage.getKey(), listener)));
+                }
+                build.setResult(result);
+            }
+        } else if (!packageFiles.isEmpty()) {
+            final long start = System.currentTimeMillis();
+            long estimate = estimate(listener, hosts, packageFiles.keySet());
+            PackageResultsAction checkpoints = getCheckpoints(build, listener);
+            if (getMaxParallelHosts() > 1 && hosts.size() > 1) {
+                result = deployInParallel(build, listener, result, hosts, packageFiles, digests, executionPath,
+                                          retryPolicy, checkpoints);
+            } else {
+                for (String baseUrl : hosts) {
                     if (!result.isBetterOrEqualTo(Result.UNSTABLE)) {
-                        return false;
+                        break;
                     }
-                    FilePath.FileCallable<Result> callable = null;
-                    if (disableForJobTesting) {
-                        callable = new DebugPackageCallable(selectedPackage.getKey(), listener);
-                    } else {
-                        GraniteClientConfig clientConfig =
-                                new GraniteClientConfig(baseUrl, credentialsId, requestTimeout, serviceTimeout);
+                    result = result.combine(deployToHost(build, listener, baseUrl, packageFiles, digests,
+                                                         executionPath, retryPolicy, checkpoints));
+                    build.setResult(result);
+                    PackageResultsAction.forBuild(build).saveBuild(build);
+                }
+            }
+            listener.getLogger().printf("Deployment took %s (estimated %s)%n",
+                                        Util.getTimeSpanString(System.currentTimeMillis() - start),
+                                        estimate > 0L ? Util.getTimeSpanString(estimate) : "unknown");
+        }
+
+        if (spoolDir != null) {
+            copyLogsBack(selectedPackages, spoolDir);
+        }
+        return result;
+    }
+
+    /**
+     * Estimates how long the deployment will take from the durations of previous deployments, and when deploying to
+     * servers in parallel, sorts the servers so that those expected to take longest are started first.
+     *
+     * @return the estimated duration in milliseconds, or 0 if there is no history to estimate from
+     */
+    private long estimate(BuildListener listener, List<String> hosts, Collection<PackId> packIds) {
+        final DeploymentHistory history = DeploymentHistory.getInstance();
+        final Map<String, Long> hostDurations = new HashMap<String, Long>();
+        for (String baseUrl : hosts) {
+            hostDurations.put(baseUrl, history.estimate(baseUrl, packIds));
+        }
+
+        int parallel = Math.max(1, getMaxParallelHosts());
+        if (parallel > 1) {
+            Collections.sort(hosts, new Comparator<String>() {
+                public int compare(String left, String right) {
+                    return hostDurations.get(right).compareTo(hostDurations.get(left));
+                }
+            });
+        }
 
-                        callable = new PackageDeploymentCallable(
-                                clientConfig, listener,
-                                selectedPackage.getKey(), getPackageInstallOptions(), getExistingPackageBehavior());
+        List<Long> durations = new ArrayList<Long>();
+        for (String baseUrl : hosts) {
+            durations.add(hostDurations.get(baseUrl));
+        }
+        long estimate = DeploymentHistory.estimateTotal(durations, parallel);
+        if (estimate > 0L) {
+            listener.getLogger().printf("Estimated deployment time: %s%n", Util.getTimeSpanString(estimate));
+        }
+        return estimate;
+    }
+
+    /**
+     * Deploys to up to maxParallelHosts servers at a time. Packages are still installed one at a time, in dependency
+     * order, on each server. Once any server fails, servers which have not been started yet are skipped, as they
+     * would be when deploying to one server after another. When an install error threshold is set, the deployments
+     * still running on other servers are aborted as well, since the threshold asks not to wait for an installation
+     * which is failing anyway. The build is saved with its checkpoints by this thread
+     * as each server finishes, rather than by the threads deploying to the other servers.
+     */
+    private Result deployInParallel(final AbstractBuild<?, ?> build, final BuildListener listener, Result result,
+                                    List<String> hosts, final Map<PackId, String> packageFiles,
+                                    final PackageDigests digests, final FilePath executionPath,
+                                    final RetryPolicy retryPolicy, final PackageResultsAction checkpoints)
+            throws IOException, InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean(!result.isBetterOrEqualTo(Result.UNSTABLE));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(getMaxParallelHosts(), hosts.size()),
+                                                                new DaemonThreadFactory());
+        CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+        try {
+            Map<String, Future<Result>> deployments = new LinkedHashMap<String, Future<Result>>();
+            for (final String baseUrl : hosts) {
+                deployments.put(baseUrl, completion.submit(new Callable<Result>() {
+                    public Result call() throws Exception {
+                        if (failed.get()) {
+                            return null;
+                        }
+                        Result hostResult = deployToHost(build, listener, baseUrl, packageFiles, digests,
+                                                         executionPath, retryPolicy, checkpoints);
+                        if (!hostResult.isBetterOrEqualTo(Result.UNSTABLE)) {
+                            failed.set(true);
+                        }
+                        return hostResult;
                     }
+                }));
+            }
 
-                    result = result.combine(selectedPackage.getValue().act(callable));
-                    build.setResult(result);
+            PackageResultsAction action = PackageResultsAction.forBuild(build);
+            boolean aborted = false;
+            for (int i = 0; i < deployments.size(); i++) {
+                completion.take();
+                action.saveBuild(build);
+                if (!aborted && failed.get() && getInstallErrorThreshold() > 0) {
+                    aborted = true;
+                    for (Future<Result> deployment : deployments.values()) {
+                        deployment.cancel(true);
+                    }
                 }
             }
+
+            for (Map.Entry<String, Future<Result>> deployment : deployments.entrySet()) {
+                try {
+                    Result hostResult = deployment.getValue().get();
+                    if (hostResult == null) {
+                        listener.getLogger().printf("Skipped %s after an earlier failure%n", deployment.getKey());
+                    } else {
+                        result = result.combine(hostResult);
+                    }
+                } catch (CancellationException e) {
+                    listener.error("Aborted deployment to %s after an earlier failure", deployment.getKey());
+                    result = result.combine(Result.FAILURE);
+                } catch (ExecutionException e) {
+                    listener.error("Failed to deploy packages to %s: %s", deployment.getKey(), e.getCause());
+                    failed.set(true);
+                    result = result.combine(Result.FAILURE);
+                }
+                build.setResult(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the build to resume from, as selected by the resumeFrom option: a build number, or "auto" for the
+     * previous build when it did not succeed.
+     *
+     * @return the results of that build, or null to deploy everything
+     */
+    private PackageResultsAction getCheckpoints(AbstractBuild<?, ?> build, BuildListener listener) {
+        String _resumeFrom = getResumeFrom();
+        if (_resumeFrom.isEmpty()) {
+            return null;
         }
 
-        return result.isBetterOrEqualTo(Result.UNSTABLE);
+        AbstractBuild<?, ?> resumed;
+        if ("auto".equalsIgnoreCase(_resumeFrom)) {
+            resumed = build.getPreviousCompletedBuild();
+            if (resumed == null || resumed.getResult() == Result.SUCCESS) {
+                return null;
+            }
+        } else {
+            try {
+                resumed = build.getParent().getBuildByNumber(Integer.parseInt(_resumeFrom.replace("#", "")));
+            } catch (NumberFormatException e) {
+                resumed = null;
+            }
+            if (resumed == null || resumed == build) {
+                listener.error("Cannot resume from build %s, deploying all packages", _resumeFrom);
+                return null;
+            }
+        }
+
+        PackageResultsAction checkpoints = resumed.getAction(PackageResultsAction.class);
+        if (checkpoints != null) {
+            listener.getLogger().printf("Resuming from %s%n", resumed.getFullDisplayName());
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Deploys all the packages to one server and records the outcome on the build, which the caller saves. Packages
+     * which the resumed build deployed to the server successfully from an identical file are skipped, as are packages
+     * which the {@link DeploymentLedger} shows are unchanged on the server when skipUnchanged is set. Each package
+     * which was uploaded and installed successfully is recorded in the ledger, and is saved with the build as a
+     * checkpoint for later builds to resume from, along with the skipped packages. Packages skipped by
+     * {@link ExistingPackageBehavior#SKIP} are neither, because their file was not deployed. The results are recorded
+     * in the order of the packages, whether they were skipped or deployed.
+     */
+    private Result deployToHost(AbstractBuild<?, ?> build, final BuildListener listener, String baseUrl,
+                                Map<PackId, String> allPackageFiles, PackageDigests digests,
+                                final FilePath executionPath, RetryPolicy retryPolicy,
+                                PackageResultsAction checkpoints)
+            throws IOException, InterruptedException {
+        listener.getLogger().printf("Deploying packages to %s%n", baseUrl);
+
+        DeploymentLedger ledger = DeploymentLedger.getInstance();
+        List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        Set<PackId> unchanged = new HashSet<PackId>();
+        Map<PackId, String> packageFiles = new LinkedHashMap<PackId, String>();
+        for (Map.Entry<PackId, String> packageFile : allPackageFiles.entrySet()) {
+            PackId packId = packageFile.getKey();
+            if (checkpoints != null && checkpoints.hasCheckpoint(baseUrl, packId, digests.get(packId))) {
+                listener.getLogger().printf("Skipping %s, which the resumed build deployed to %s%n", packId, baseUrl);
+                results.add(new PackageDeploymentResult(packId, Result.SUCCESS, 0L));
+                unchanged.add(packId);
+            } else if (isSkipUnchanged() && ledger != null
+                    && ledger.isDeployed(baseUrl, packId, digests.get(packId))) {
+                listener.getLogger().printf("Skipping %s, which is unchanged since %s deployed it to %s%n",
+                                            packId, ledger.getEntry(baseUrl, packId).getBuild(), baseUrl);
+                results.add(new PackageDeploymentResult(packId, Result.SUCCESS, 0L));
+                unchanged.add(packId);
+            } else {
+                packageFiles.put(packId, packageFile.getValue());
+            }
+        }
+        if (!packageFiles.isEmpty()) {
+            List<PackageDeploymentResult> deployed = deployPackages(build, listener, baseUrl, packageFiles, digests,
+                                                                    executionPath, retryPolicy);
+            if (ledger != null) {
+                for (PackageDeploymentResult packageResult : deployed) {
+                    if (packageResult.getResult() == Result.SUCCESS && packageResult.isDeployed()) {
+                        ledger.record(baseUrl, packageResult.getPackId(), digests.get(packageResult.getPackId()),
+                                      build);
+                    }
+                }
+            }
+            results.addAll(deployed);
+            results = PackageDeploymentResult.inOrder(allPackageFiles.keySet(), results);
+        }
+
+        Result hostResult = PackageDeploymentResult.combine(results, allPackageFiles.size());
+        PackageResultsAction action = PackageResultsAction.forBuild(build);
+        action.add(PackageResultsAction.DEPLOY, baseUrl, results, hostResult);
+        for (PackageDeploymentResult packageResult : results) {
+            if (packageResult.getResult() == Result.SUCCESS
+                    && (packageResult.isDeployed() || unchanged.contains(packageResult.getPackId()))) {
+                action.addCheckpoint(baseUrl, packageResult.getPackId(), digests.get(packageResult.getPackId()));
+            }
+        }
+        return hostResult;
+    }
+
+    private List<PackageDeploymentResult> deployPackages(AbstractBuild<?, ?> build, final BuildListener listener,
+                                                         String baseUrl, final Map<PackId, String> packageFiles,
+                                                         PackageDigests digests, final FilePath executionPath,
+                                                         final RetryPolicy retryPolicy)
+            throws IOException, InterruptedException {
+
+        final GraniteClientConfig clientConfig =
+                new GraniteClientConfig(baseUrl, credentialsId, requestTimeout, serviceTimeout, autoTimeouts);
+        final HostConcurrencyLimiter limiter = HostConcurrencyLimiter.forBaseUrl(
+                baseUrl, GraniteAHCFactory.getFactoryInstance().getMaxConcurrentOperationsPerHost());
+        InFlightDeployments.Deployment deployment = new InFlightDeployments.Deployment() {
+            public List<PackageDeploymentResult> deploy(List<PackId> packIds)
+                    throws IOException, InterruptedException {
+                Map<PackId, String> claimedFiles = new LinkedHashMap<PackId, String>();
+                for (PackId packId : packIds) {
+                    claimedFiles.put(packId, packageFiles.get(packId));
+                }
+                PackageBatchDeploymentCallable callable = new PackageBatchDeploymentCallable(
+                        clientConfig, listener, claimedFiles, getPackageInstallOptions(),
+                        getExistingPackageBehavior(), getInstallLogVerbosity(), retryPolicy);
+                limiter.acquire(listener);
+                try {
+                    return executionPath.act(callable);
+                } finally {
+                    limiter.release();
+                }
+            }
+        };
+
+        Map<PackId, String> keys = new LinkedHashMap<PackId, String>();
+        for (PackId packId : packageFiles.keySet()) {
+            keys.put(packId, InFlightDeployments.getKey(baseUrl, packId, digests.getFingerprint(packId),
+                                                        getPackageInstallOptions(), getExistingPackageBehavior()));
+        }
+        // only the packages this build deployed itself count towards the history, not those taken from other builds
+        List<PackageDeploymentResult> performed = new ArrayList<PackageDeploymentResult>();
+        List<PackageDeploymentResult> results = InFlightDeployments.deploy(
+                keys, build.getFullDisplayName(), listener, deployment, performed);
+        DeploymentHistory.getInstance().record(baseUrl, performed);
+        return results;
+    }
+
+    /**
+     * Copies the full installation logs written next to the copies of the package files back next to the originals.
+     */
+    private void copyLogsBack(Map<PackId, FilePath> selectedPackages, FilePath spoolDir)
+            throws IOException, InterruptedException {
+        int index = 0;
+        for (FilePath packageFile : selectedPackages.values()) {
+            String spoolName = index++ + "-" + packageFile.getName();
+            for (FilePath log : spoolDir.list(spoolName + ".*.log.gz")) {
+                String logName = packageFile.getName() + log.getName().substring(spoolName.length());
+                log.copyTo(packageFile.getParent().child(logName));
+            }
+        }
     }
 
     private Map<PackId, FilePath> selectPackages(final AbstractBuild<?, ?> build, final BuildListener listener) throws IOException, InterruptedException {
@@ -443,17 +890,7 @@ public class DeployPackagesBuilder extends Builder {
 
         public FormValidation doCheckBaseUrls(@QueryParameter String value, @QueryParameter String credentialsId,
                                               @QueryParameter long requestTimeout, @QueryParameter long serviceTimeout) {
-            for (String baseUrl : parseBaseUrls(value)) {
-                try {
-                    if (!GraniteClientExecutor.checkLogin(
-                            new GraniteClientConfig(baseUrl, credentialsId, requestTimeout, serviceTimeout))) {
-                        return FormValidation.error("Failed to login to " + baseUrl);
-                    }
-                } catch (IOException e) {
-                    return FormValidation.error(e.getCause(), e.getMessage());
-                }
-            }
-            return FormValidation.ok();
+            return GraniteLoginChecker.validate(parseBaseUrls(value), credentialsId, requestTimeout, serviceTimeout);
         }
 
         public ListBoxModel doFillAcHandlingItems() {
@@ -470,6 +907,14 @@ public class DeployPackagesBuilder extends Builder {
             return model;
         }
 
+        public ListBoxModel doFillLogVerbosityItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("Full", "Full");
+            model.add("Summary", "Summary");
+            model.add("Errors only", "Errors");
+            return model;
+        }
+
     }
 
     static class DebugPackageCallable implements FilePath.FileCallable<Result> {
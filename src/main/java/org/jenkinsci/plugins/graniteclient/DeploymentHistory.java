@@ -0,0 +1,202 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.XmlFile;
+import hudson.model.Result;
+import jenkins.model.Jenkins;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers how long each package took to upload and to install on each server across builds, keyed by server and
+ * package group and name so that new versions of a package inherit the history of the old ones. Durations are
+ * smoothed over recent builds, and are kept in a file in the Jenkins root directory.
+ */
+final class DeploymentHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentHistory.class.getName());
+
+    private static final String FILE_NAME = DeploymentHistory.class.getName() + ".xml";
+
+    /**
+     * the weight of the latest duration against the previous average
+     */
+    private static final double WEIGHT = 0.3D;
+
+    private static DeploymentHistory instance;
+
+    private final HashMap<String, Long> uploadDurations = new HashMap<String, Long>();
+    private final HashMap<String, Long> installDurations = new HashMap<String, Long>();
+
+    private DeploymentHistory() {
+    }
+
+    static synchronized DeploymentHistory getInstance() {
+        if (instance == null) {
+            instance = new DeploymentHistory();
+            XmlFile file = getFile();
+            if (file != null && file.exists()) {
+                try {
+                    file.unmarshal(instance);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load deployment history", e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static XmlFile getFile() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new XmlFile(new File(jenkins.getRootDir(), FILE_NAME));
+    }
+
+    private static String getKey(String baseUrl, PackId packId) {
+        return baseUrl + " " + packId.getGroup() + ":" + packId.getName();
+    }
+
+    /**
+     * @return the expected time to upload the package to the server in milliseconds, or -1 if it has not been
+     * deployed there before
+     */
+    synchronized long getUploadDuration(String baseUrl, PackId packId) {
+        Long duration = uploadDurations.get(getKey(baseUrl, packId));
+        return duration != null ? duration : -1L;
+    }
+
+    /**
+     * @return the expected time to install the package on the server in milliseconds, or -1 if it has not been
+     * deployed there before
+     */
+    synchronized long getInstallDuration(String baseUrl, PackId packId) {
+        Long duration = installDurations.get(getKey(baseUrl, packId));
+        return duration != null ? duration : -1L;
+    }
+
+    /**
+     * @return the expected time to upload and install the package on the server in milliseconds, or -1 if it has not
+     * been deployed there before
+     */
+    synchronized long getDuration(String baseUrl, PackId packId) {
+        long upload = getUploadDuration(baseUrl, packId);
+        long install = getInstallDuration(baseUrl, packId);
+        return upload >= 0L && install >= 0L ? upload + install : -1L;
+    }
+
+    /**
+     * @return the expected time to deploy all the packages to the server in milliseconds, counting packages which
+     * have not been deployed there before as the average of those which have, or 0 if none have
+     */
+    synchronized long estimate(String baseUrl, Collection<PackId> packIds) {
+        long known = 0L;
+        int count = 0;
+        for (PackId packId : packIds) {
+            long duration = getDuration(baseUrl, packId);
+            if (duration >= 0L) {
+                known += duration;
+                count++;
+            }
+        }
+        return count > 0 ? known * packIds.size() / count : 0L;
+    }
+
+    /**
+     * Estimates how long deploying to all the servers will take when up to {@code parallel} servers are deployed to
+     * at a time, taking each server in the given order as soon as a slot is free.
+     */
+    static long estimateTotal(List<Long> hostDurations, int parallel) {
+        long[] slots = new long[Math.max(1, Math.min(parallel, hostDurations.size()))];
+        for (long duration : hostDurations) {
+            int free = 0;
+            for (int i = 1; i < slots.length; i++) {
+                if (slots[i] < slots[free]) {
+                    free = i;
+                }
+            }
+            slots[free] += duration;
+        }
+        Arrays.sort(slots);
+        return slots[slots.length - 1];
+    }
+
+    /**
+     * Records the upload and install durations of the packages which were uploaded and installed successfully.
+     * Failed deployments are left out, since they usually end early, as are packages which were skipped, since they
+     * take no time at all.
+     */
+    void record(String baseUrl, List<PackageDeploymentResult> results) {
+        List<PackageDeploymentResult> completed = new ArrayList<PackageDeploymentResult>();
+        for (PackageDeploymentResult result : results) {
+            if (result.isDeployed() && result.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                completed.add(result);
+            }
+        }
+        if (completed.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            for (PackageDeploymentResult result : completed) {
+                String key = getKey(baseUrl, result.getPackId());
+                update(uploadDurations, key, result.getUploadDuration());
+                update(installDurations, key, result.getInstallDuration());
+            }
+            save();
+        }
+    }
+
+    private static void update(HashMap<String, Long> durations, String key, long duration) {
+        Long previous = durations.get(key);
+        durations.put(key, previous == null ? duration
+                : Math.round(WEIGHT * duration + (1.0D - WEIGHT) * previous));
+    }
+
+    private void save() {
+        XmlFile file = getFile();
+        if (file != null) {
+            try {
+                file.write(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save deployment history", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Api;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.adamcin.granite.client.packman.PackId;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ledger of the package most recently installed by a deployment step for each package group and name on each server,
+ * kept on the master in a file in the Jenkins root directory. It is shown at {@code crxDeploymentLedger}, exported
+ * through the remote API at {@code crxDeploymentLedger/api}, and used to skip packages which are unchanged since
+ * they were last deployed without asking the server. Entries are shown only to users who can read the job which
+ * installed the package.
+ */
+@Extension
+@ExportedBean
+public class DeploymentLedger implements RootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentLedger.class.getName());
+
+    private static final String FILE_NAME = DeploymentLedger.class.getName() + ".xml";
+
+    /**
+     * entries keyed by package group and name, then server, so that entries for the same package sort together
+     */
+    private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private transient boolean loaded;
+
+    /**
+     * @return the ledger registered with Jenkins, or null when Jenkins is not running
+     */
+    static DeploymentLedger getInstance() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        for (RootAction action : jenkins.getExtensionList(RootAction.class)) {
+            if (action instanceof DeploymentLedger) {
+                return (DeploymentLedger) action;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The base URL is normalized, so that the same server configured with a different case or a trailing slash in
+     * another job shares its entries.
+     */
+    private static String getKey(String baseUrl, PackId packId) {
+        return packId.getGroup() + ":" + packId.getName() + "\n" + HostCircuitBreaker.normalize(baseUrl);
+    }
+
+    private static XmlFile getFile() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new XmlFile(new File(jenkins.getRootDir(), FILE_NAME));
+    }
+
+    private void load() {
+        if (!loaded) {
+            loaded = true;
+            XmlFile file = getFile();
+            if (file != null && file.exists()) {
+                try {
+                    file.unmarshal(this);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load deployment ledger", e);
+                }
+                rekey();
+            }
+        }
+    }
+
+    /**
+     * Keys entries loaded from a ledger saved before base URLs were normalized, keeping the latest entry of a server
+     * which was recorded under more than one base URL.
+     */
+    private void rekey() {
+        List<Entry> loadedEntries = new ArrayList<Entry>(entries.values());
+        entries.clear();
+        for (Entry entry : loadedEntries) {
+            PackId packId = PackId.parsePid(entry.getPackageId());
+            if (packId == null) {
+                continue;
+            }
+            String key = getKey(entry.getBaseUrl(), packId);
+            Entry existing = entries.get(key);
+            if (existing == null || existing.getTimestamp() < entry.getTimestamp()) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    private void save() {
+        XmlFile file = getFile();
+        if (file != null) {
+            try {
+                file.write(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save deployment ledger", e);
+            }
+        }
+    }
+
+    /**
+     * Records a successful install of the package file to the server by the build.
+     */
+    void record(String baseUrl, PackId packId, String digest, AbstractBuild<?, ?> build) {
+        record(baseUrl, packId, digest, build.getExternalizableId());
+    }
+
+    /**
+     * @param build the {@link hudson.model.Run#getExternalizableId()} of the build
+     */
+    synchronized void record(String baseUrl, PackId packId, String digest, String build) {
+        load();
+        entries.put(getKey(baseUrl, packId), new Entry(baseUrl, packId.toString(), digest,
+                System.currentTimeMillis(), build));
+        save();
+    }
+
+    /**
+     * @return the entry for the last install of any version of the package to the server, or null if there is none
+     */
+    synchronized Entry getEntry(String baseUrl, PackId packId) {
+        load();
+        return entries.get(getKey(baseUrl, packId));
+    }
+
+    /**
+     * @return true if the last install of the package to the server was of this version from an identical file
+     */
+    boolean isDeployed(String baseUrl, PackId packId, String digest) {
+        Entry entry = getEntry(baseUrl, packId);
+        return entry != null && entry.getPackageId().equals(packId.toString()) && entry.getDigest().equals(digest);
+    }
+
+    /**
+     * @return the entries which the current user may see
+     */
+    @Exported(inline = true)
+    public synchronized List<Entry> getEntries() {
+        load();
+        List<Entry> visible = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (isVisible(entry)) {
+                visible.add(entry);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * An entry reveals which packages a job deploys to which servers, so it is visible to users who can read that
+     * job. Entries of jobs which no longer exist are visible to administrators only.
+     */
+    private static boolean isVisible(Entry entry) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return true;
+        }
+        String build = entry.getBuild();
+        int number = build != null ? build.lastIndexOf('#') : -1;
+        Item job = number > 0 ? jenkins.getItemByFullName(build.substring(0, number)) : null;
+        if (job == null) {
+            return jenkins.hasPermission(Jenkins.ADMINISTER);
+        }
+        return job.hasPermission(Item.READ);
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null && jenkins.hasPermission(Jenkins.READ) ? "package.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "CRX Deployment Ledger";
+    }
+
+    public String getUrlName() {
+        return "crxDeploymentLedger";
+    }
+
+    /**
+     * The last install of a package to a server
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+        private final String baseUrl;
+        private final String packageId;
+        private final String digest;
+        private final long timestamp;
+        private final String build;
+
+        private Entry(String baseUrl, String packageId, String digest, long timestamp, String build) {
+            this.baseUrl = baseUrl;
+            this.packageId = packageId;
+            this.digest = digest;
+            this.timestamp = timestamp;
+            this.build = build;
+        }
+
+        @Exported
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        @Exported
+        public String getPackageId() {
+            return packageId;
+        }
+
+        @Exported
+        public String getDigest() {
+            return digest;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Date getDate() {
+            return new Date(timestamp);
+        }
+
+        /**
+         * @return the full name and number of the build which installed the package
+         */
+        @Exported
+        public String getBuild() {
+            return build;
+        }
+    }
+}
@@ -29,10 +29,12 @@ package org.jenkinsci.plugins.graniteclient;
 
 import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
@@ -44,15 +46,24 @@ import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of the "Download Content Packages from CRX" build step
  */
 public class DownloadPackagesBuilder extends Builder {
+
+    private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 1;
+
     private String packageIds;
     private String baseUrl;
     private String credentialsId;
@@ -60,11 +71,19 @@ public class DownloadPackagesBuilder extends Builder {
     private long serviceTimeout;
     private String localDirectory;
     private boolean ignoreErrors;
+    private int maxRetries;
+    private long retryDelay;
+    private String executionNode;
+    private boolean autoTimeouts;
+    private int maxParallelDownloads;
+    private boolean useMirror;
 
     @DataBoundConstructor
     public DownloadPackagesBuilder(String packageIds, String baseUrl, String credentialsId,
                                    long requestTimeout, long serviceTimeout,
-                                   String localDirectory, boolean ignoreErrors) {
+                                   String localDirectory, boolean ignoreErrors, int maxRetries, long retryDelay,
+                                   String executionNode, boolean autoTimeouts, int maxParallelDownloads,
+                                   boolean useMirror) {
         this.packageIds = packageIds;
         this.baseUrl = baseUrl;
         this.credentialsId = credentialsId;
@@ -72,6 +91,12 @@ public class DownloadPackagesBuilder extends Builder {
         this.serviceTimeout = serviceTimeout;
         this.localDirectory = localDirectory;
         this.ignoreErrors = ignoreErrors;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.executionNode = executionNode;
+        this.autoTimeouts = autoTimeouts;
+        this.maxParallelDownloads = maxParallelDownloads;
+        this.useMirror = useMirror;
     }
 
     @Override
@@ -83,19 +108,170 @@ public class DownloadPackagesBuilder extends Builder {
             result = Result.SUCCESS;
         }
 
-        GraniteClientConfig clientConfig = new GraniteClientConfig(
-                getBaseUrl(build, listener), credentialsId, requestTimeout, serviceTimeout);
+        Map<String, GraniteClientConfig> sources = new LinkedHashMap<String, GraniteClientConfig>();
+        for (String url : parseBaseUrls(getBaseUrl(build, listener))) {
+            sources.put(url, new GraniteClientConfig(url, credentialsId, requestTimeout, serviceTimeout, autoTimeouts));
+        }
+        if (sources.isEmpty()) {
+            listener.error("No base URL specified.");
+            return false;
+        }
 
-        PackageDownloadCallable callable = new PackageDownloadCallable(clientConfig, listener,
-                                                                       listPackIds(build, listener),
-                                                                       ignoreErrors);
+        List<PackId> packIds = new ArrayList<PackId>(listPackIds(build, listener));
+        List<String> packageFilters = listPackageFilters(build, listener);
 
         final String fLocalDirectory = getLocalDirectory(build, listener);
-        result = result.combine(build.getWorkspace().child(fLocalDirectory).act(callable));
+        FilePath toDirectory = build.getWorkspace().child(fLocalDirectory);
+
+        // when requests are made from another node, packages are downloaded to a directory there and then streamed
+        // over the channels to the workspace, because the client downloads to a local file
+        FilePath spoolDir = null;
+        Node node = ExecutionNodes.resolve(getExecutionNode());
+        if (node != null && !ExecutionNodes.isOn(node, toDirectory)) {
+            listener.getLogger().printf("Downloading from %s%n", node.getDisplayName());
+            spoolDir = ExecutionNodes.createSpoolDir(node, "download");
+        }
+
+        FilePath executionPath = spoolDir != null ? spoolDir : toDirectory;
+        try {
+            Set<PackId> downloadedPackIds = new HashSet<PackId>();
+            if (isUseMirror()) {
+                packageFilters = copyFromMirror(build, listener, toDirectory, sources, packIds, packageFilters,
+                                                downloadedPackIds);
+            }
+
+            List<String> ranked = new ArrayList<String>(sources.keySet());
+            if (downloadedPackIds.containsAll(packIds) && packageFilters.isEmpty()) {
+                ranked.clear();
+            } else if (ranked.size() > 1) {
+                ranked = DownloadSources.rank(executionPath, new ArrayList<GraniteClientConfig>(sources.values()),
+                                              packIds.isEmpty() ? null : packIds.get(0), listener);
+            }
+
+            // packages which fail to download from one server are downloaded from the next fastest, until all have
+            // been downloaded or every server has been tried
+            for (Iterator<String> sourceIterator = ranked.iterator(); sourceIterator.hasNext(); ) {
+                String baseUrl = sourceIterator.next();
+                List<PackId> remaining = new ArrayList<PackId>(packIds);
+                remaining.removeAll(downloadedPackIds);
+
+                PackageDownloadCallable callable = new PackageDownloadCallable(
+                        sources.get(baseUrl), listener, remaining, packageFilters, downloadedPackIds, ignoreErrors,
+                        getRetryPolicy(build), getMaxParallelDownloads());
+
+                List<PackageDeploymentResult> results;
+                HostConcurrencyLimiter limiter = HostConcurrencyLimiter.forBaseUrl(
+                        baseUrl, GraniteAHCFactory.getFactoryInstance().getMaxConcurrentOperationsPerHost());
+                limiter.acquire(listener);
+                try {
+                    results = executionPath.act(callable);
+                } catch (IOException e) {
+                    if (sourceIterator.hasNext()) {
+                        listener.error("Failed to download from %s: %s", baseUrl, e.getMessage());
+                        continue;
+                    } else if (!ignoreErrors) {
+                        throw e;
+                    }
+                    listener.error("Failed to download from %s: %s", baseUrl, e.getMessage());
+                    result = result.combine(Result.UNSTABLE);
+                    break;
+                } finally {
+                    limiter.release();
+                }
+
+                for (PackageDeploymentResult packageResult : results) {
+                    if (packageResult.getResult() == Result.SUCCESS) {
+                        downloadedPackIds.add(packageResult.getPackId());
+                    }
+                }
+                Result hostResult = PackageDeploymentResult.combine(results, remaining.size());
+                PackageResultsAction.forBuild(build).add(PackageResultsAction.DOWNLOAD, baseUrl, results, hostResult);
+
+                if (hostResult == Result.SUCCESS || !sourceIterator.hasNext()) {
+                    result = result.combine(hostResult);
+                    break;
+                }
+                listener.getLogger().printf("Downloading the remaining packages from the next source.%n");
+            }
+
+            if (spoolDir != null) {
+                toDirectory.mkdirs();
+                for (FilePath downloaded : spoolDir.list()) {
+                    downloaded.copyTo(toDirectory.child(downloaded.getName()));
+                }
+            }
+        } finally {
+            if (spoolDir != null) {
+                spoolDir.deleteRecursive();
+            }
+        }
 
         return result.isBetterOrEqualTo(Result.UNSTABLE);
     }
 
+    /**
+     * Copies the packages which are in the {@link PackageMirror} of a source server to the directory, when one of the
+     * sources is a mirrored server. The packages on the server are listed first, so that the filters are resolved
+     * against what the server has now, and so that packages which changed on the server since they were mirrored are
+     * downloaded from the server instead.
+     *
+     * @param packIds receives the IDs of the packages which the filters resolved to
+     * @param copied receives the IDs of the packages which were copied
+     * @return the filters which match no package listed by the server, to be resolved against the server again
+     */
+    private List<String> copyFromMirror(AbstractBuild<?, ?> build, TaskListener listener, FilePath toDirectory,
+                                        Map<String, GraniteClientConfig> sources, List<PackId> packIds,
+                                        List<String> packageFilters, Set<PackId> copied)
+            throws IOException, InterruptedException {
+        String baseUrl = PackageMirror.getMirroredBaseUrl(sources.keySet());
+        if (baseUrl == null) {
+            listener.getLogger().printf("None of the sources is mirrored, so the package mirror is not used.%n");
+            return packageFilters;
+        }
+
+        Map<PackId, PackageMetadata> listed;
+        try {
+            listed = GraniteClientExecutor.listMetadata(sources.get(baseUrl));
+        } catch (IOException e) {
+            listener.error("Failed to list packages on %s, so the package mirror is not used: %s",
+                           baseUrl, e.getMessage());
+            return packageFilters;
+        }
+
+        List<String> unresolved = new ArrayList<String>();
+        for (String packageFilter : packageFilters) {
+            List<PackId> matches = PackageDownloadCallable.resolveFilter(packageFilter, listed.keySet());
+            if (matches.isEmpty()) {
+                unresolved.add(packageFilter);
+            }
+            for (PackId packId : matches) {
+                if (!packIds.contains(packId)) {
+                    packIds.add(packId);
+                }
+            }
+        }
+
+        List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        for (PackId packId : packIds) {
+            File file = PackageMirror.getFile(baseUrl, listed.get(packId));
+            if (file == null) {
+                continue;
+            }
+            final long start = System.currentTimeMillis();
+            toDirectory.mkdirs();
+            new FilePath(file).copyTo(toDirectory.child(file.getName()));
+            listener.getLogger().printf("Copied %s from the package mirror of %s.%n", packId, baseUrl);
+            results.add(new PackageDeploymentResult(packId, Result.SUCCESS, System.currentTimeMillis() - start));
+            copied.add(packId);
+        }
+        if (!results.isEmpty()) {
+            PackageResultsAction.forBuild(build).add(PackageResultsAction.DOWNLOAD,
+                                                     PackageMirror.getServerDirectory(baseUrl).toURI().toString(),
+                                                     results, Result.SUCCESS);
+        }
+        return unresolved;
+    }
+
     public String getPackageIds() {
         if (this.packageIds != null) {
             return this.packageIds.trim();
@@ -122,6 +298,19 @@ public class DownloadPackagesBuilder extends Builder {
         return getBaseUrl();
     }
 
+    /**
+     * @return the base URLs listed one per line, which are alternative sources of the same packages
+     */
+    private static List<String> parseBaseUrls(String value) {
+        List<String> _baseUrls = new ArrayList<String>();
+        for (String url : value.split("(\\r)?\\n")) {
+            if (url.trim().length() > 0 && !_baseUrls.contains(url.trim())) {
+                _baseUrls.add(url.trim());
+            }
+        }
+        return Collections.unmodifiableList(_baseUrls);
+    }
+
     public String getCredentialsId() {
         return credentialsId;
     }
@@ -143,6 +332,9 @@ public class DownloadPackagesBuilder extends Builder {
         List<PackId> packIds = new ArrayList<PackId>();
 
         for (String packageId : getPackageIds(build, listener).split("\\r?\\n")) {
+            if (PackageDownloadCallable.isPackageFilter(packageId)) {
+                continue;
+            }
             PackId packId = PackId.parsePid(packageId);
             if (packId != null) {
                 packIds.add(packId);
@@ -152,6 +344,19 @@ public class DownloadPackagesBuilder extends Builder {
         return Collections.unmodifiableList(packIds);
     }
 
+    public List<String> listPackageFilters(AbstractBuild<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException {
+        List<String> packageFilters = new ArrayList<String>();
+
+        for (String packageId : getPackageIds(build, listener).split("\\r?\\n")) {
+            if (PackageDownloadCallable.isPackageFilter(packageId)) {
+                packageFilters.add(packageId.trim());
+            }
+        }
+
+        return Collections.unmodifiableList(packageFilters);
+    }
+
     public String getBaseUrl() {
         if (this.baseUrl != null) {
             return this.baseUrl.trim();
@@ -204,6 +409,60 @@ public class DownloadPackagesBuilder extends Builder {
         this.serviceTimeout = serviceTimeout;
     }
 
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public String getExecutionNode() {
+        return executionNode;
+    }
+
+    public void setExecutionNode(String executionNode) {
+        this.executionNode = executionNode;
+    }
+
+    public boolean isAutoTimeouts() {
+        return autoTimeouts;
+    }
+
+    public void setAutoTimeouts(boolean autoTimeouts) {
+        this.autoTimeouts = autoTimeouts;
+    }
+
+    public int getMaxParallelDownloads() {
+        return maxParallelDownloads > 0 ? maxParallelDownloads : DEFAULT_MAX_PARALLEL_DOWNLOADS;
+    }
+
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        this.maxParallelDownloads = maxParallelDownloads;
+    }
+
+    public boolean isUseMirror() {
+        return useMirror;
+    }
+
+    public void setUseMirror(boolean useMirror) {
+        this.useMirror = useMirror;
+    }
+
+    public RetryPolicy getRetryPolicy(AbstractBuild<?, ?> build) {
+        return new RetryPolicy(getMaxRetries(), getRetryDelay(),
+                               GraniteAHCFactory.getFactoryInstance().getRetryBudgetPerBuild(),
+                               build.getParent().getFullName() + "#" + build.getNumber());
+    }
+
     @Extension // This indicates to Jenkins that this is an implementation of an extension point.
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
@@ -213,20 +472,18 @@ public class DownloadPackagesBuilder extends Builder {
         }
 
         public AbstractIdCredentialsListBoxModel doFillCredentialsIdItems(@QueryParameter String baseUrl) {
-            return GraniteCredentialsListBoxModel.fillItems(baseUrl);
+            List<String> _baseUrls = parseBaseUrls(baseUrl);
+
+            if (!_baseUrls.isEmpty()) {
+                return GraniteCredentialsListBoxModel.fillItems(_baseUrls.iterator().next());
+            } else {
+                return GraniteCredentialsListBoxModel.fillItems();
+            }
         }
 
         public FormValidation doCheckBaseUrl(@QueryParameter String value, @QueryParameter String credentialsId,
                                              @QueryParameter long requestTimeout, @QueryParameter long serviceTimeout) {
-            try {
-                if (!GraniteClientExecutor.checkLogin(
-                        new GraniteClientConfig(value, credentialsId, requestTimeout, serviceTimeout))) {
-                    return FormValidation.error("Failed to login to " + value);
-                }
-                return FormValidation.ok();
-            } catch (IOException e) {
-                return FormValidation.error(e.getCause(), e.getMessage());
-            }
+            return GraniteLoginChecker.validate(parseBaseUrls(value), credentialsId, requestTimeout, serviceTimeout);
         }
 
         @Override
@@ -0,0 +1,163 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Ranks the servers which a {@link DownloadPackagesBuilder} can download the same packages from. Each server is probed
+ * concurrently from the node which will download, by logging in and checking that a package exists, and the servers
+ * are ordered by how long that took. Servers which fail the probe or do not answer in time are kept at the end, in
+ * their configured order, as a last resort.
+ */
+final class DownloadSources {
+
+    static final long PROBE_TIMEOUT_MS = 10000L;
+
+    private DownloadSources() {
+    }
+
+    /**
+     * @param probePackId a package which should exist on every server, or null to only log in
+     * @return the base URLs of the servers, fastest first
+     */
+    static List<String> rank(FilePath executionPath, List<GraniteClientConfig> sources, PackId probePackId,
+                             TaskListener listener) throws IOException, InterruptedException {
+        final Map<String, Long> latencies = executionPath.act(new ProbeCallable(sources, probePackId, listener));
+
+        List<String> ranked = new ArrayList<String>();
+        for (GraniteClientConfig source : sources) {
+            ranked.add(source.getBaseUrl());
+            Long latency = latencies.get(source.getBaseUrl());
+            if (latency != null && latency >= 0L) {
+                listener.getLogger().printf("Source %s responded in %d ms%n", source.getBaseUrl(), latency);
+            } else {
+                listener.getLogger().printf("Source %s is unavailable%n", source.getBaseUrl());
+            }
+        }
+
+        // the sort is stable, so unavailable servers stay in their configured order
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String left, String right) {
+                return getRank(latencies.get(left)).compareTo(getRank(latencies.get(right)));
+            }
+        });
+        return ranked;
+    }
+
+    private static Long getRank(Long latency) {
+        return latency != null && latency >= 0L ? latency : Long.MAX_VALUE;
+    }
+
+    private static final class ProbeCallable implements FilePath.FileCallable<Map<String, Long>> {
+        private static final long serialVersionUID = -1874372281537012449L;
+
+        private final ArrayList<GraniteClientConfig> sources;
+        private final PackId probePackId;
+        private final TaskListener listener;
+
+        private ProbeCallable(List<GraniteClientConfig> sources, PackId probePackId, TaskListener listener) {
+            this.sources = new ArrayList<GraniteClientConfig>(sources);
+            this.probePackId = probePackId;
+            this.listener = listener;
+        }
+
+        /**
+         * @return the probe latency of each server in milliseconds, or -1 for servers which failed the probe
+         */
+        public Map<String, Long> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            ExecutorService executor = Executors.newFixedThreadPool(sources.size(), new DaemonThreadFactory());
+            try {
+                Map<String, Future<Long>> probes = new LinkedHashMap<String, Future<Long>>();
+                for (final GraniteClientConfig source : sources) {
+                    probes.put(source.getBaseUrl(), executor.submit(new Callable<Long>() {
+                        public Long call() throws Exception {
+                            return probe(source);
+                        }
+                    }));
+                }
+
+                final long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+                Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+                for (Map.Entry<String, Future<Long>> probe : probes.entrySet()) {
+                    long latency = -1L;
+                    try {
+                        latency = probe.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()),
+                                                       TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        listener.getLogger().printf("Source %s did not respond within %d ms%n",
+                                                    probe.getKey(), PROBE_TIMEOUT_MS);
+                    } catch (ExecutionException e) {
+                        listener.getLogger().printf("Source %s failed: %s%n",
+                                                    probe.getKey(), e.getCause().getMessage());
+                    }
+                    latencies.put(probe.getKey(), latency);
+                }
+                return latencies;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private long probe(GraniteClientConfig source) throws Exception {
+            final long start = System.currentTimeMillis();
+            boolean available = GraniteClientExecutor.execute(new PackageManagerClientCallable<Boolean>() {
+                public Boolean doExecute(PackageManagerClient client) throws Exception {
+                    return probePackId == null || client.existsOnServer(probePackId);
+                }
+            }, source, listener);
+            if (!available) {
+                listener.getLogger().printf("Source %s does not have package %s%n",
+                                            source.getBaseUrl(), probePackId);
+                return -1L;
+            }
+            return System.currentTimeMillis() - start;
+        }
+    }
+}
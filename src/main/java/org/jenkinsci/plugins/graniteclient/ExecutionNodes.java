@@ -0,0 +1,101 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+
+/**
+ * Resolves the execution node option of the deploy and download steps, which selects where HTTP requests to the
+ * server are made from: blank for the node where the workspace is, "master" for the controller, or otherwise a node
+ * name or label expression.
+ */
+final class ExecutionNodes {
+
+    static final String CONTROLLER = "master";
+
+    private ExecutionNodes() {
+    }
+
+    /**
+     * @return the first online node matching the option, or null if the option is blank
+     * @throws IOException if no online node matches
+     */
+    static Node resolve(String executionNode) throws IOException {
+        if (executionNode == null || executionNode.trim().isEmpty()) {
+            return null;
+        }
+
+        final String expression = executionNode.trim();
+        Jenkins jenkins = Jenkins.getInstance();
+        if (CONTROLLER.equalsIgnoreCase(expression) || "controller".equalsIgnoreCase(expression)) {
+            return jenkins;
+        }
+
+        Label label = jenkins.getLabel(expression);
+        if (label != null) {
+            for (Node node : label.getNodes()) {
+                Computer computer = node.toComputer();
+                if (computer != null && computer.isOnline() && node.getChannel() != null) {
+                    return node;
+                }
+            }
+        }
+        throw new IOException("No online node matches execution node " + expression);
+    }
+
+    /**
+     * @return true if the path is on the node
+     */
+    static boolean isOn(Node node, FilePath path) {
+        if (path.isRemote()) {
+            return node.getChannel() == path.getChannel();
+        } else {
+            return node == Jenkins.getInstance();
+        }
+    }
+
+    /**
+     * Creates a new directory on the node for package files while they are used there. The caller is responsible for
+     * deleting it.
+     */
+    static FilePath createSpoolDir(Node node, String prefix) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new IOException("Node " + node.getDisplayName() + " is offline");
+        }
+        FilePath base = root.child("crx-content-package-deployer");
+        base.mkdirs();
+        return base.createTempDir(prefix, "");
+    }
+}
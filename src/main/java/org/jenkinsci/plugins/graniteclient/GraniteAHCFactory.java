@@ -48,14 +48,35 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory> imple
 
     private static final AsyncHttpClientConfig DEFAULT_CONFIG = new AsyncHttpClientConfig.Builder().build();
 
+    /**
+     * Used when no Jenkins instance is available in the current JVM, such as on a remote agent or in a standalone
+     * harness, in which case only the default settings apply.
+     */
+    private static GraniteAHCFactory defaultInstance;
+
     private String credentialsId;
     private int connectionTimeoutInMs = DEFAULT_CONFIG.getConnectionTimeoutInMs();
     private int idleConnectionTimeoutInMs = DEFAULT_CONFIG.getIdleConnectionTimeoutInMs();
     private int requestTimeoutInMs = DEFAULT_CONFIG.getRequestTimeoutInMs();
+    private int circuitBreakerThreshold = 0;
+    private long circuitBreakerCooldownInMs = 60000L;
+    private int retryBudgetPerBuild = 10;
+    private int maxConcurrentOperationsPerHost = 0;
+    private long transferBudgetInMb = 0L;
+    private long hostBandwidthLimitInKBps = 0L;
+    private String mirrorBaseUrls;
+    private String mirrorPackageFilters;
+    private long mirrorSyncIntervalInMinutes = 0L;
 
     public GraniteAHCFactory() {
+        this(true);
+    }
+
+    private GraniteAHCFactory(boolean load) {
         super(GraniteAHCFactory.class);
-        load();
+        if (load) {
+            load();
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -102,6 +123,78 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory> imple
         this.requestTimeoutInMs = requestTimeoutInMs;
     }
 
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public long getCircuitBreakerCooldownInMs() {
+        return circuitBreakerCooldownInMs;
+    }
+
+    public void setCircuitBreakerCooldownInMs(long circuitBreakerCooldownInMs) {
+        this.circuitBreakerCooldownInMs = circuitBreakerCooldownInMs;
+    }
+
+    public int getRetryBudgetPerBuild() {
+        return retryBudgetPerBuild;
+    }
+
+    public void setRetryBudgetPerBuild(int retryBudgetPerBuild) {
+        this.retryBudgetPerBuild = retryBudgetPerBuild;
+    }
+
+    public int getMaxConcurrentOperationsPerHost() {
+        return maxConcurrentOperationsPerHost;
+    }
+
+    public void setMaxConcurrentOperationsPerHost(int maxConcurrentOperationsPerHost) {
+        this.maxConcurrentOperationsPerHost = maxConcurrentOperationsPerHost;
+    }
+
+    public long getTransferBudgetInMb() {
+        return transferBudgetInMb;
+    }
+
+    public void setTransferBudgetInMb(long transferBudgetInMb) {
+        this.transferBudgetInMb = transferBudgetInMb;
+    }
+
+    public long getHostBandwidthLimitInKBps() {
+        return hostBandwidthLimitInKBps;
+    }
+
+    public void setHostBandwidthLimitInKBps(long hostBandwidthLimitInKBps) {
+        this.hostBandwidthLimitInKBps = hostBandwidthLimitInKBps;
+    }
+
+    public String getMirrorBaseUrls() {
+        return mirrorBaseUrls != null ? mirrorBaseUrls.trim() : "";
+    }
+
+    public void setMirrorBaseUrls(String mirrorBaseUrls) {
+        this.mirrorBaseUrls = mirrorBaseUrls;
+    }
+
+    public String getMirrorPackageFilters() {
+        return mirrorPackageFilters != null ? mirrorPackageFilters.trim() : "";
+    }
+
+    public void setMirrorPackageFilters(String mirrorPackageFilters) {
+        this.mirrorPackageFilters = mirrorPackageFilters;
+    }
+
+    public long getMirrorSyncIntervalInMinutes() {
+        return mirrorSyncIntervalInMinutes;
+    }
+
+    public void setMirrorSyncIntervalInMinutes(long mirrorSyncIntervalInMinutes) {
+        this.mirrorSyncIntervalInMinutes = mirrorSyncIntervalInMinutes;
+    }
+
     @Override
     public String getDisplayName() {
         return "CRX Content Package Deployer - HTTP Client";
@@ -122,7 +215,7 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory> imple
     public AsyncHttpClient newInstance() {
         return new AsyncHttpClient(
                 new AsyncHttpClientConfig.Builder()
-                        .setProxyServer(AHCUtils.getProxyServer())
+                        .setProxyServer(Jenkins.getInstance() != null ? AHCUtils.getProxyServer() : null)
                         .setConnectionTimeoutInMs(this.connectionTimeoutInMs)
                         .setIdleConnectionTimeoutInMs(this.idleConnectionTimeoutInMs)
                         .setRequestTimeoutInMs(this.requestTimeoutInMs)
@@ -130,11 +223,23 @@ public final class GraniteAHCFactory extends Descriptor<GraniteAHCFactory> imple
     }
 
     public static GraniteAHCFactory getFactoryInstance() {
-        Descriptor descriptor = Jenkins.getInstance().getDescriptorOrDie(GraniteAHCFactory.class);
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return getDefaultInstance();
+        }
+
+        Descriptor descriptor = jenkins.getDescriptorOrDie(GraniteAHCFactory.class);
         if (descriptor instanceof GraniteAHCFactory) {
             return (GraniteAHCFactory) descriptor;
         } else {
             return new GraniteAHCFactory();
         }
     }
+
+    private static synchronized GraniteAHCFactory getDefaultInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new GraniteAHCFactory(false);
+        }
+        return defaultInstance;
+    }
 }
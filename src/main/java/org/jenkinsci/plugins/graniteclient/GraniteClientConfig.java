@@ -37,20 +37,42 @@ import java.io.Serializable;
  */
 public final class GraniteClientConfig implements Serializable {
 
-    private static final long serialVersionUID = 5044980450351873759L;
+    private static final long serialVersionUID = -3620894307214652361L;
 
     private final String baseUrl;
     private final String credentialsId;
     private final long requestTimeout;
     private final long serviceTimeout;
     private final Credentials credentials;
+    private final int circuitBreakerThreshold;
+    private final long circuitBreakerCooldown;
+    private final long transferBudget;
+    private final long hostBandwidthLimit;
+    private final boolean autoTimeouts;
 
     public GraniteClientConfig(String baseUrl, String credentialsId, long requestTimeout, long serviceTimeout) {
+        this(baseUrl, credentialsId, requestTimeout, serviceTimeout, false);
+    }
+
+    /**
+     * @param autoTimeouts true to derive timeouts from recent latencies of the server, using requestTimeout and
+     *                     serviceTimeout only until there are enough of them
+     */
+    public GraniteClientConfig(String baseUrl, String credentialsId, long requestTimeout, long serviceTimeout,
+                               boolean autoTimeouts) {
         this.baseUrl = baseUrl;
         this.credentialsId = credentialsId;
         this.requestTimeout = requestTimeout > 0L ? requestTimeout : -1L;
         this.serviceTimeout = serviceTimeout > 0L ? serviceTimeout : -1L;
+        this.autoTimeouts = autoTimeouts;
         this.credentials = GraniteNamedIdCredentials.getCredentialsById(credentialsId);
+
+        // global settings are captured here, on the master, because the config is serialized to wherever it executes
+        GraniteAHCFactory factory = GraniteAHCFactory.getFactoryInstance();
+        this.circuitBreakerThreshold = factory.getCircuitBreakerThreshold();
+        this.circuitBreakerCooldown = factory.getCircuitBreakerCooldownInMs();
+        this.transferBudget = Math.max(0L, factory.getTransferBudgetInMb()) * 1024L * 1024L;
+        this.hostBandwidthLimit = Math.max(0L, factory.getHostBandwidthLimitInKBps()) * 1024L;
     }
 
     public String getBaseUrl() {
@@ -73,8 +95,35 @@ public final class GraniteClientConfig implements Serializable {
         return serviceTimeout;
     }
 
+    public boolean isAutoTimeouts() {
+        return autoTimeouts;
+    }
+
     public Credentials getCredentials() {
         return credentials;
     }
 
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public long getCircuitBreakerCooldown() {
+        return circuitBreakerCooldown;
+    }
+
+    /**
+     * @return the maximum number of bytes of package transfers in flight on a node, or 0 for no limit
+     */
+    public long getTransferBudget() {
+        return transferBudget;
+    }
+
+    /**
+     * @return the average number of bytes per second at which the starts of transfers to or from the server are
+     * spaced out, or 0 for no pacing
+     */
+    public long getHostBandwidthLimit() {
+        return hostBandwidthLimit;
+    }
+
 }
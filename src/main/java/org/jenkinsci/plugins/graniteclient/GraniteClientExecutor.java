@@ -32,20 +32,24 @@ import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Realm;
 import com.ning.http.client.Response;
 import com.ning.http.client.SignatureCalculator;
 import hudson.model.TaskListener;
 import hudson.util.LogTaskListener;
+import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
 import net.adamcin.httpsig.api.Key;
 import net.adamcin.httpsig.api.KeyId;
 import net.adamcin.httpsig.api.Signer;
 import net.adamcin.httpsig.http.ning.AsyncUtil;
-import net.adamcin.httpsig.ssh.jce.UserKeysFingerprintKeyId;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +61,10 @@ public final class GraniteClientExecutor {
 
     private static final Logger LOGGER = Logger.getLogger(GraniteClientExecutor.class.getName());
 
+    private static final String LOGIN_OPERATION = "LOGIN";
+
+    private static final String LIST_PATH = "/crx/packmgr/list.jsp";
+
     private static final TaskListener DEFAULT_LISTENER = new LogTaskListener(LOGGER, Level.INFO);
 
     private static final AsyncCompletionHandler<Boolean> LOGIN_HANDLER = new AsyncCompletionHandler<Boolean>() {
@@ -82,18 +90,53 @@ public final class GraniteClientExecutor {
         client.setBaseUrl(config.getBaseUrl());
         client.setRequestTimeout(config.getRequestTimeout());
         client.setServiceTimeout(config.getServiceTimeout());
+        if (config.isAutoTimeouts()) {
+            client.setRequestTimeout(AdaptiveTimeouts.getTimeout(
+                    config.getBaseUrl(), LOGIN_OPERATION, config.getRequestTimeout()));
+        }
 
         try {
-            if (doLogin(client, config.getCredentials(), listener)) {
-                return callable.doExecute(client);
-            } else {
-                throw new IOException("Failed to login to " + config.getBaseUrl());
-            }
+            login(client, config, listener);
+            return callable.doExecute(client);
         } finally {
             ahcClient.closeAsynchronously();
         }
     }
 
+    /**
+     * Logs in through the circuit breaker for the config's base URL, which fails fast while the server is considered
+     * down and records the outcome of the login otherwise.
+     */
+    private static void login(AsyncPackageManagerClient client, GraniteClientConfig config,
+                              TaskListener listener) throws IOException {
+        HostCircuitBreaker breaker = HostCircuitBreaker.forBaseUrl(config.getBaseUrl());
+        breaker.acquire(config.getCircuitBreakerThreshold(), config.getCircuitBreakerCooldown());
+
+        boolean loggedIn = false;
+        final long start = System.currentTimeMillis();
+        try {
+            loggedIn = doLogin(client, config.getCredentials(), listener);
+            if (loggedIn) {
+                AdaptiveTimeouts.record(config.getBaseUrl(), LOGIN_OPERATION, System.currentTimeMillis() - start);
+            }
+        } catch (IOException e) {
+            if (RetryPolicy.isTimeout(e)) {
+                AdaptiveTimeouts.record(config.getBaseUrl(), LOGIN_OPERATION, System.currentTimeMillis() - start);
+            }
+            throw e;
+        } finally {
+            if (loggedIn) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure(config.getCircuitBreakerThreshold());
+            }
+        }
+
+        if (!loggedIn) {
+            throw new IOException("Failed to login to " + config.getBaseUrl());
+        }
+    }
+
     private static boolean doLogin(AsyncPackageManagerClient client, Credentials credentials,
                                    final TaskListener listener) throws IOException {
         final Credentials _creds = credentials != null ? credentials :
@@ -118,7 +161,9 @@ public final class GraniteClientExecutor {
             return false;
         }
 
-        KeyId keyId = new UserKeysFingerprintKeyId(key.getUsername());
+        // the parsed key and its fingerprint are cached, but the signer carries per-challenge state, so each login
+        // gets its own
+        KeyId keyId = GraniteNamedIdCredentials.getKeyIdFromCredentials(key);
         Signer signer = new Signer(sshkey, keyId);
         Future<Boolean> fResponse = AsyncUtil.login(
                 client.getClient(),
@@ -142,6 +187,78 @@ public final class GraniteClientExecutor {
         return client.login(username, password);
     }
 
+    /**
+     * Lists the packages on the server with their sizes and last modified times, which the list in the client API
+     * leaves out. The request authenticates itself, with a signature for SSH key credentials and preemptive basic
+     * authentication otherwise.
+     *
+     * @return the metadata of each package on the server, by package ID
+     */
+    static Map<PackId, PackageMetadata> listMetadata(final GraniteClientConfig config) throws IOException {
+        final String url = config.getBaseUrl().replaceAll("/+$", "") + LIST_PATH;
+        final AsyncHttpClient ahcClient = GraniteAHCFactory.getFactoryInstance().newInstance();
+
+        AsyncCompletionHandler<String> handler = new AsyncCompletionHandler<String>() {
+            @Override
+            public String onCompleted(Response response) throws Exception {
+                if (response.getStatusCode() != 200) {
+                    throw new IOException("Failed to list packages on " + config.getBaseUrl() + ": "
+                            + response.getStatusCode() + " " + response.getStatusText());
+                }
+                return response.getResponseBody("UTF-8");
+            }
+        };
+
+        try {
+            Future<String> fResponse = executeAuthenticated(ahcClient, config, ahcClient.prepareGet(url), handler);
+            String json = config.getRequestTimeout() > 0L
+                    ? fResponse.get(config.getRequestTimeout(), TimeUnit.MILLISECONDS) : fResponse.get();
+            return PackageMetadata.parse(json);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to list packages on " + config.getBaseUrl(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing packages on " + config.getBaseUrl(), e);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out listing packages on " + config.getBaseUrl(), e);
+        } finally {
+            ahcClient.closeAsynchronously();
+        }
+    }
+
+    /**
+     * Executes a request outside of the package manager client, authenticating it with the config's credentials:
+     * a signature login for SSH keys, or preemptive basic authentication otherwise.
+     */
+    static <T> Future<T> executeAuthenticated(AsyncHttpClient ahcClient, GraniteClientConfig config,
+                                              AsyncHttpClient.BoundRequestBuilder request,
+                                              AsyncCompletionHandler<T> handler) throws IOException {
+        final Credentials _creds = config.getCredentials() != null ? config.getCredentials() :
+                GraniteAHCFactory.getFactoryInstance().getDefaultCredentials();
+        if (_creds instanceof SSHUserPrivateKey) {
+            SSHUserPrivateKey key = (SSHUserPrivateKey) _creds;
+            Key sshkey = GraniteNamedIdCredentials.getKeyFromCredentials(key);
+            if (sshkey == null) {
+                throw new IOException("Failed to read the key of credentials " + config.getCredentialsId());
+            }
+            Signer signer = new Signer(sshkey, GraniteNamedIdCredentials.getKeyIdFromCredentials(key));
+            return AsyncUtil.login(ahcClient, signer, request.build(), handler);
+        } else {
+            String username = "admin";
+            String password = "admin";
+            if (_creds instanceof StandardUsernamePasswordCredentials) {
+                username = ((StandardUsernamePasswordCredentials) _creds).getUsername();
+                password = ((StandardUsernamePasswordCredentials) _creds).getPassword().getPlainText();
+            }
+            Realm realm = new Realm.RealmBuilder().setPrincipal(username).setPassword(password)
+                    .setUsePreemptiveAuth(true).setScheme(Realm.AuthScheme.BASIC).build();
+            return request.setRealm(realm).execute(handler);
+        }
+    }
+
     public static boolean checkLogin(final GraniteClientConfig config) throws IOException {
         final AsyncHttpClient asyncHttpClient = GraniteAHCFactory.getFactoryInstance().newInstance();
 
@@ -0,0 +1,194 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Performs the login checks behind the Base URL form validations. Logins to all listed URLs are attempted
+ * concurrently under a bounded overall deadline, and outcomes are cached per (url, credentialsId, timeouts) for a
+ * short time, since form validation fires on every blur. A check which misses the deadline keeps running in the
+ * background, so its outcome is usually available from the cache by the next validation.
+ */
+public final class GraniteLoginChecker {
+
+    static final long CACHE_TTL_MS = 30000L;
+    static final long VALIDATION_DEADLINE_MS = 10000L;
+    private static final int MAX_CONCURRENT_CHECKS = 8;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_CHECKS, new DaemonThreadFactory());
+
+    private static final ConcurrentMap<String, Outcome> OUTCOMES = new ConcurrentHashMap<String, Outcome>();
+    private static final ConcurrentMap<String, Future<Outcome>> IN_FLIGHT =
+            new ConcurrentHashMap<String, Future<Outcome>>();
+
+    private GraniteLoginChecker() {
+    }
+
+    /**
+     * Validates login to each of the base URLs using the same credentials and timeouts.
+     *
+     * @return ok if every login succeeded, otherwise an error listing the outcome for each URL that failed or did not
+     * respond before the deadline
+     */
+    public static FormValidation validate(List<String> baseUrls, String credentialsId,
+                                          long requestTimeout, long serviceTimeout) {
+        Map<String, Future<Outcome>> checks = new LinkedHashMap<String, Future<Outcome>>();
+        for (String baseUrl : baseUrls) {
+            if (!checks.containsKey(baseUrl)) {
+                checks.put(baseUrl, check(new GraniteClientConfig(baseUrl, credentialsId,
+                        requestTimeout, serviceTimeout)));
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + VALIDATION_DEADLINE_MS;
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Future<Outcome>> check : checks.entrySet()) {
+            Outcome outcome;
+            try {
+                outcome = check.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                outcome = new Outcome(false, "No response within " + (VALIDATION_DEADLINE_MS / 1000L)
+                        + " seconds. Still checking.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome = new Outcome(false, "Interrupted");
+            } catch (ExecutionException e) {
+                outcome = new Outcome(false, String.valueOf(e.getCause().getMessage()));
+            }
+
+            if (!outcome.success) {
+                failures.put(check.getKey(), outcome.message);
+            }
+        }
+
+        if (failures.isEmpty()) {
+            return FormValidation.ok();
+        } else if (checks.size() == 1) {
+            return FormValidation.error(failures.values().iterator().next());
+        } else {
+            StringBuilder markup = new StringBuilder("Failed to login to ").append(failures.size())
+                    .append(" of ").append(checks.size()).append(" servers:");
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                markup.append("<br/>").append(Util.escape(failure.getKey()))
+                        .append(": ").append(Util.escape(failure.getValue()));
+            }
+            return FormValidation.errorWithMarkup(markup.toString());
+        }
+    }
+
+    /**
+     * Returns the cached outcome for the config if it is recent enough, otherwise joins an in-flight check for the
+     * same config or starts a new one.
+     */
+    private static Future<Outcome> check(final GraniteClientConfig config) {
+        final String key = config.getBaseUrl() + "\n" + config.getCredentialsId() + "\n"
+                + config.getRequestTimeout() + "\n" + config.getServiceTimeout();
+
+        final Outcome cached = OUTCOMES.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.timestamp < CACHE_TTL_MS) {
+            FutureTask<Outcome> done = new FutureTask<Outcome>(new Callable<Outcome>() {
+                public Outcome call() throws Exception {
+                    return cached;
+                }
+            });
+            done.run();
+            return done;
+        }
+
+        FutureTask<Outcome> task = new FutureTask<Outcome>(new Callable<Outcome>() {
+            public Outcome call() throws Exception {
+                Outcome outcome;
+                try {
+                    try {
+                        if (GraniteClientExecutor.checkLogin(config)) {
+                            outcome = new Outcome(true, "OK");
+                        } else {
+                            outcome = new Outcome(false, "Failed to login to " + config.getBaseUrl());
+                        }
+                    } catch (Exception e) {
+                        outcome = new Outcome(false, String.valueOf(e.getMessage()));
+                    }
+                    // publish the outcome before leaving IN_FLIGHT, so that a check arriving in between finds one
+                    // or the other instead of starting a second login
+                    OUTCOMES.put(key, outcome);
+                } finally {
+                    IN_FLIGHT.remove(key);
+                }
+                return outcome;
+            }
+        });
+
+        Future<Outcome> existing = IN_FLIGHT.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+
+        EXECUTOR.execute(task);
+        evictExpired();
+        return task;
+    }
+
+    private static void evictExpired() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Outcome> entry : OUTCOMES.entrySet()) {
+            if (now - entry.getValue().timestamp >= CACHE_TTL_MS) {
+                OUTCOMES.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static final class Outcome {
+        final boolean success;
+        final String message;
+        final long timestamp = System.currentTimeMillis();
+
+        private Outcome(boolean success, String message) {
+            this.success = success;
+            this.message = message;
+        }
+    }
+}
@@ -39,16 +39,24 @@ import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredenti
 import com.cloudbees.plugins.credentials.domains.DomainCredentials;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.model.Jenkins;
 import net.adamcin.httpsig.api.Key;
 import net.adamcin.httpsig.api.KeyId;
 import net.adamcin.httpsig.ssh.bc.PEMUtil;
 import net.adamcin.httpsig.ssh.jce.FingerprintableKey;
 import net.adamcin.httpsig.ssh.jce.UserKeysFingerprintKeyId;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -59,19 +67,71 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
 
     private static final long serialVersionUID = -7611025520557823267L;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Parsed SSH keys by credentials ID. Each entry carries a hash of the credentials content it was parsed from, so
+     * that a changed key is re-read even in a JVM that never hears about the change, such as a remote agent.
+     */
+    private static final ConcurrentMap<String, ParsedKey> PARSED_KEYS = new ConcurrentHashMap<String, ParsedKey>();
+
+    private static final Object INDEX_LOCK = new Object();
+    private static Map<String, Credentials> credentialsIndex;
+    private static long credentialsIndexVersion;
+
     public static Credentials getCredentialsById(String credentialsId) {
-        CredentialsMatcher matcher = new CredentialsIdMatcher(credentialsId);
-        List<Credentials> credentialsList =
-                DomainCredentials.getCredentials(
-                        SystemCredentialsProvider.getInstance().getDomainCredentialsMap(),
-                        Credentials.class, Collections.<DomainRequirement>emptyList(), matcher
-                );
-
-        if (!credentialsList.isEmpty()) {
-            return credentialsList.iterator().next();
-        } else {
+        if (credentialsId == null || credentialsId.isEmpty()) {
             return null;
         }
+
+        return getCredentialsIndex().get(credentialsId);
+    }
+
+    /**
+     * Returns the system credentials indexed by ID, scanning the domain credentials map only when the index has been
+     * invalidated. The index is also rebuilt whenever the credentials.xml file has changed since the last scan, in
+     * case a store change was saved without notifying the {@link GraniteCredentialsSaveableListener}.
+     */
+    private static Map<String, Credentials> getCredentialsIndex() {
+        final long storeVersion = getStoreVersion();
+        synchronized (INDEX_LOCK) {
+            if (credentialsIndex == null || credentialsIndexVersion != storeVersion) {
+                List<Credentials> credentialsList =
+                        DomainCredentials.getCredentials(
+                                SystemCredentialsProvider.getInstance().getDomainCredentialsMap(),
+                                Credentials.class, Collections.<DomainRequirement>emptyList(),
+                                new CredentialsIdMatcher(null)
+                        );
+
+                credentialsIndex = indexById(credentialsList);
+                credentialsIndexVersion = storeVersion;
+            }
+            return credentialsIndex;
+        }
+    }
+
+    /**
+     * @return the credentials by ID, where the first of several credentials with the same ID wins, as it does when
+     * scanning the domains for an ID
+     */
+    static Map<String, Credentials> indexById(List<Credentials> credentialsList) {
+        Map<String, Credentials> index = new HashMap<String, Credentials>();
+        for (Credentials credentials : credentialsList) {
+            String id = CredentialsIdMatcher.getId(credentials);
+            if (id != null && !index.containsKey(id)) {
+                index.put(id, credentials);
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    private static long getStoreVersion() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return 0L;
+        }
+        File storeFile = new File(jenkins.getRootDir(), "credentials.xml");
+        return storeFile.lastModified() ^ (storeFile.length() << 32);
     }
 
     public CredentialsScope getScope() {
@@ -103,14 +163,13 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
         }
 
         public String getName() {
-            Key key = getKeyFromCredentials(wrapped);
+            ParsedKey parsed = getParsedKey(wrapped);
 
-            if (key == null) {
+            if (parsed == null) {
                 return "[Signature] <failed to read SSH key> " + getId();
             }
 
-            KeyId keyId = new UserKeysFingerprintKeyId(wrapped.getUsername());
-            StringBuilder nameBuilder = new StringBuilder("[Signature] ").append(keyId.getId(key));
+            StringBuilder nameBuilder = new StringBuilder("[Signature] ").append(parsed.keyId);
             if (wrapped.getDescription() != null && !wrapped.getDescription().trim().isEmpty()) {
                 nameBuilder.append(" (").append(wrapped.getDescription()).append(")");
             }
@@ -158,6 +217,9 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
         return new UserPassNamedIdCredentials(creds);
     }
 
+    /**
+     * Matches credentials by ID, or any credentials which have an ID if constructed with a null credentialsId
+     */
     private static class CredentialsIdMatcher implements CredentialsMatcher {
         final String credentialsId;
 
@@ -166,18 +228,77 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
         }
 
         public boolean matches(@NonNull Credentials item) {
-            if (credentialsId != null && !credentialsId.isEmpty()) {
-                if (item instanceof SSHUserPrivateKey) {
-                    return credentialsId.equals(((SSHUserPrivateKey) item).getId());
-                } else if (item instanceof IdCredentials) {
-                    return credentialsId.equals(((IdCredentials) item).getId());
-                }
+            String id = getId(item);
+            if (credentialsId == null) {
+                return id != null && !id.isEmpty();
+            } else if (!credentialsId.isEmpty()) {
+                return credentialsId.equals(id);
             }
             return false;
         }
+
+        static String getId(Credentials item) {
+            if (item instanceof SSHUserPrivateKey) {
+                return ((SSHUserPrivateKey) item).getId();
+            } else if (item instanceof IdCredentials) {
+                return ((IdCredentials) item).getId();
+            }
+            return null;
+        }
     }
 
     public static Key getKeyFromCredentials(SSHUserPrivateKey creds) {
+        ParsedKey parsed = getParsedKey(creds);
+        return parsed != null ? parsed.key : null;
+    }
+
+    /**
+     * Returns a {@link KeyId} for the key in the given credentials which answers with the fingerprint computed when
+     * the key was first parsed, rather than recomputing it for every signature.
+     */
+    public static KeyId getKeyIdFromCredentials(SSHUserPrivateKey creds) {
+        final ParsedKey parsed = getParsedKey(creds);
+        final KeyId delegate = new UserKeysFingerprintKeyId(creds.getUsername());
+        return new KeyId() {
+            public String getId(Key key) {
+                if (parsed != null && parsed.key == key) {
+                    return parsed.keyId;
+                }
+                return delegate.getId(key);
+            }
+        };
+    }
+
+    /**
+     * Drops the credentials index and all cached parsed keys. Called when the credentials store changes.
+     */
+    static void invalidateCaches() {
+        PARSED_KEYS.clear();
+        synchronized (INDEX_LOCK) {
+            credentialsIndex = null;
+        }
+    }
+
+    private static ParsedKey getParsedKey(SSHUserPrivateKey creds) {
+        final String contentHash = getContentHash(creds);
+        final ParsedKey cached = PARSED_KEYS.get(creds.getId());
+        if (cached != null && cached.contentHash.equals(contentHash)) {
+            return cached;
+        }
+
+        Key key = readKey(creds);
+        if (key == null) {
+            PARSED_KEYS.remove(creds.getId());
+            return null;
+        }
+
+        String keyId = new UserKeysFingerprintKeyId(creds.getUsername()).getId(key);
+        ParsedKey parsed = new ParsedKey(contentHash, key, keyId);
+        PARSED_KEYS.put(creds.getId(), parsed);
+        return parsed;
+    }
+
+    private static Key readKey(SSHUserPrivateKey creds) {
         try {
             char[] passphrase = null;
 
@@ -185,11 +306,44 @@ abstract class GraniteNamedIdCredentials implements IdCredentials {
                 passphrase = creds.getPassphrase().getEncryptedValue().toCharArray();
             }
 
-            return PEMUtil.readKey(creds.getPrivateKey().getBytes(Charset.forName("UTF-8")), passphrase);
+            return PEMUtil.readKey(creds.getPrivateKey().getBytes(UTF_8), passphrase);
         } catch (IOException e) {
             LOGGER.severe("[getKeyFromCredentials] failed to read key from SSHUserPrivateKey: " + e.getMessage());
         }
 
         return null;
     }
+
+    private static String getContentHash(SSHUserPrivateKey creds) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(String.valueOf(creds.getUsername()).getBytes(UTF_8));
+            md.update((byte) 0);
+            md.update(String.valueOf(creds.getPrivateKey()).getBytes(UTF_8));
+            md.update((byte) 0);
+            if (creds.getPassphrase() != null) {
+                md.update(creds.getPassphrase().getEncryptedValue().getBytes(UTF_8));
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class ParsedKey {
+        final String contentHash;
+        final Key key;
+        final String keyId;
+
+        private ParsedKey(String contentHash, Key key, String keyId) {
+            this.contentHash = contentHash;
+            this.key = key;
+            this.keyId = keyId;
+        }
+    }
 }
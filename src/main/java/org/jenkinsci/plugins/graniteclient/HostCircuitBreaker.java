@@ -0,0 +1,134 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breaker for a single base URL, shared by every callable and build executing in the same JVM. After a
+ * configured number of consecutive connection or login failures the circuit opens, and executions against that server
+ * fail immediately until the cool-down period has passed. The circuit then half-opens to let exactly one execution
+ * through as a probe, which closes the circuit again if its login succeeds, or re-opens it if not.
+ */
+final class HostCircuitBreaker {
+
+    private static final ConcurrentMap<String, HostCircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, HostCircuitBreaker>();
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String baseUrl;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0L;
+    private boolean probing = false;
+
+    private HostCircuitBreaker(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    static HostCircuitBreaker forBaseUrl(String baseUrl) {
+        final String key = normalize(baseUrl);
+        HostCircuitBreaker breaker = BREAKERS.get(key);
+        if (breaker == null) {
+            HostCircuitBreaker created = new HostCircuitBreaker(key);
+            breaker = BREAKERS.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    static String normalize(String baseUrl) {
+        String key = baseUrl != null ? baseUrl.trim().toLowerCase() : "";
+        while (key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+
+    /**
+     * Admits an execution against the server, or throws if the circuit is open.
+     *
+     * @param threshold number of consecutive failures which opens the circuit. 0 or less disables the breaker.
+     * @param cooldown  milliseconds to stay open before admitting a probe
+     * @throws IOException if the circuit is open, or half-open with a probe already in progress
+     */
+    synchronized void acquire(int threshold, long cooldown) throws IOException {
+        if (threshold <= 0) {
+            return;
+        }
+
+        if (state == State.OPEN) {
+            long remaining = openedAt + cooldown - System.currentTimeMillis();
+            if (remaining > 0L) {
+                throw new IOException(String.format(
+                        "Not connecting to %s after %d consecutive connection or login failures. "
+                                + "Will try again in %d seconds.", baseUrl, failures, (remaining + 999L) / 1000L));
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                throw new IOException(String.format(
+                        "Not connecting to %s while another execution checks whether it has recovered.", baseUrl));
+            }
+            probing = true;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+    }
+
+    synchronized void recordFailure(int threshold) {
+        if (threshold <= 0) {
+            return;
+        }
+
+        failures++;
+        if (state == State.HALF_OPEN || failures >= threshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        probing = false;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of deploy and download operations running against a single base URL at the same time, across all
+ * builds on the controller. Operations beyond the limit wait in a first-come, first-served queue, so that builds
+ * targeting a busy server take turns while operations against other servers proceed independently.
+ */
+final class HostConcurrencyLimiter {
+
+    private static final ConcurrentMap<String, HostConcurrencyLimiter> LIMITERS =
+            new ConcurrentHashMap<String, HostConcurrencyLimiter>();
+
+    private final String baseUrl;
+    private final int permits;
+    private final Semaphore semaphore;
+
+    private HostConcurrencyLimiter(String baseUrl, int permits) {
+        this.baseUrl = baseUrl;
+        this.permits = permits;
+        this.semaphore = new Semaphore(Math.max(permits, 1), true);
+    }
+
+    /**
+     * @param baseUrl the server base URL
+     * @param permits maximum number of concurrent operations. 0 or less means no limit.
+     */
+    static HostConcurrencyLimiter forBaseUrl(String baseUrl, int permits) {
+        final String key = HostCircuitBreaker.normalize(baseUrl);
+        while (true) {
+            HostConcurrencyLimiter existing = LIMITERS.get(key);
+            if (existing != null && existing.permits == permits) {
+                return existing;
+            }
+
+            // when the limit has been reconfigured, operations already holding a permit release it to the old
+            // limiter, and new operations queue on the new one.
+            HostConcurrencyLimiter created = new HostConcurrencyLimiter(key, permits);
+            if (existing == null) {
+                if (LIMITERS.putIfAbsent(key, created) == null) {
+                    return created;
+                }
+            } else if (LIMITERS.replace(key, existing, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Waits for a free slot on the server, logging the time spent queued if the slot was not immediately available.
+     */
+    void acquire(TaskListener listener) throws InterruptedException {
+        if (permits <= 0) {
+            return;
+        }
+
+        // the timed variant honors the fairness setting, unlike the untimed tryAcquire()
+        if (!semaphore.tryAcquire(0L, TimeUnit.MILLISECONDS)) {
+            listener.getLogger().printf("Waiting for a free slot on %s (%d operations allowed at once, %d queued)...%n",
+                                        baseUrl, permits, semaphore.getQueueLength() + 1);
+            final long start = System.currentTimeMillis();
+            semaphore.acquire();
+            listener.getLogger().printf("Waited %d ms for a free slot on %s.%n",
+                                        System.currentTimeMillis() - start, baseUrl);
+        }
+    }
+
+    void release() {
+        if (permits <= 0) {
+            return;
+        }
+        semaphore.release();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Registry of package deployments in progress on the controller, keyed by server, package, file and options.
+ * When a build requests the deployment of a package which is already being deployed identically for another build,
+ * it waits for that package and takes its result instead of uploading and installing it again. The other packages
+ * of the build are still deployed by the build itself.
+ */
+final class InFlightDeployments {
+
+    private static final ConcurrentMap<String, Operation> OPERATIONS = new ConcurrentHashMap<String, Operation>();
+
+    /**
+     * The work of deploying some of the packages of a build, performed only for the packages which no other build is
+     * deploying
+     */
+    interface Deployment {
+
+        /**
+         * @param packIds the packages to deploy, in order
+         * @return the result of each package, in order, up to and including the first which failed
+         */
+        List<PackageDeploymentResult> deploy(List<PackId> packIds) throws IOException, InterruptedException;
+    }
+
+    private InFlightDeployments() {
+    }
+
+    /**
+     * @param fingerprint identifies the package file, see {@link PackageDigests#getFingerprint}
+     * @return the key of a single package deployment
+     */
+    static String getKey(String baseUrl, PackId packId, String fingerprint, PackageInstallOptions options,
+                         ExistingPackageBehavior behavior) {
+        return HostCircuitBreaker.normalize(baseUrl) + "|" + packId.getInstallationPath() + "|" + fingerprint + "|"
+                + behavior + "|" + options.isRecursive() + "|" + options.getAutosave() + "|" + options.getAcHandling()
+                + "|" + options.getErrorThreshold();
+    }
+
+    /**
+     * Deploys the packages in order, attaching to identical deployments of single packages which are already in
+     * progress. Consecutive packages which no other build is deploying are deployed together, and before waiting for
+     * a package which another build is deploying, so that a build never waits while other builds wait for it.
+     * Deployment stops at the first package which fails.
+     *
+     * @param keys       the packages to deploy, in order, mapped to their operation keys from {@link #getKey}
+     * @param requester  display name of the requesting build, shown to builds which attach to its packages
+     * @param listener   the requesting build's listener
+     * @param deployment the work to perform for packages which no other build is deploying
+     * @param performed  receives the results of the packages which were deployed by this requester rather than
+     *                   attached to
+     * @return the result of each package, in order, up to and including the first which failed
+     */
+    static List<PackageDeploymentResult> deploy(Map<PackId, String> keys, String requester, TaskListener listener,
+                                                Deployment deployment, List<PackageDeploymentResult> performed)
+            throws IOException, InterruptedException {
+        List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        Map<PackId, Operation> claimed = new LinkedHashMap<PackId, Operation>();
+        for (Map.Entry<PackId, String> key : keys.entrySet()) {
+            while (true) {
+                Operation created = new Operation(requester);
+                Operation existing = OPERATIONS.putIfAbsent(key.getValue(), created);
+                if (existing == null) {
+                    claimed.put(key.getKey(), created);
+                    break;
+                }
+
+                // the packages claimed so far come before this one, so they are deployed before waiting for it
+                if (!perform(keys, claimed, deployment, results, performed)) {
+                    return results;
+                }
+
+                listener.getLogger().printf("Identical deployment of %s already in progress for %s. "
+                                                    + "Waiting for its result...%n", key.getKey(), existing.owner);
+                final long start = System.currentTimeMillis();
+                PackageDeploymentResult result = existing.await();
+                if (result != null) {
+                    listener.getLogger().printf("Deployment of %s for %s finished after %d ms.%n",
+                                                key.getKey(), existing.owner, System.currentTimeMillis() - start);
+                    results.add(result);
+                    if (!result.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                        return results;
+                    }
+                    break;
+                }
+
+                // the owner was aborted or failed unexpectedly before producing a result. Compete to perform it
+                // ourselves.
+                listener.getLogger().printf("Deployment of %s for %s did not complete. Will deploy the package "
+                                                    + "instead.%n", key.getKey(), existing.owner);
+            }
+        }
+        perform(keys, claimed, deployment, results, performed);
+        return results;
+    }
+
+    /**
+     * Deploys the claimed packages and completes their operations, then clears the claims.
+     *
+     * @return true if every claimed package was deployed successfully
+     */
+    private static boolean perform(Map<PackId, String> keys, Map<PackId, Operation> claimed, Deployment deployment,
+                                   List<PackageDeploymentResult> results, List<PackageDeploymentResult> performed)
+            throws IOException, InterruptedException {
+        if (claimed.isEmpty()) {
+            return true;
+        }
+        List<PackageDeploymentResult> deployed = null;
+        try {
+            deployed = deployment.deploy(new ArrayList<PackId>(claimed.keySet()));
+        } finally {
+            for (Map.Entry<PackId, Operation> operation : claimed.entrySet()) {
+                PackageDeploymentResult result = null;
+                if (deployed != null) {
+                    for (PackageDeploymentResult packageResult : deployed) {
+                        if (packageResult.getPackId().equals(operation.getKey())) {
+                            result = packageResult;
+                        }
+                    }
+                }
+                OPERATIONS.remove(keys.get(operation.getKey()), operation.getValue());
+                operation.getValue().complete(result);
+            }
+        }
+        int expected = claimed.size();
+        claimed.clear();
+        results.addAll(deployed);
+        performed.addAll(deployed);
+        return PackageDeploymentResult.combine(deployed, expected).isBetterOrEqualTo(Result.UNSTABLE);
+    }
+
+    private static final class Operation {
+        private final String owner;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile PackageDeploymentResult result;
+
+        private Operation(String owner) {
+            this.owner = owner;
+        }
+
+        void complete(PackageDeploymentResult result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        PackageDeploymentResult await() throws InterruptedException {
+            done.await();
+            return result;
+        }
+    }
+}
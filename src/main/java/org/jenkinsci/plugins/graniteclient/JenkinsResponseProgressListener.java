@@ -30,35 +30,177 @@ package org.jenkinsci.plugins.graniteclient;
 import hudson.model.TaskListener;
 import net.adamcin.granite.client.packman.ResponseProgressListener;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
- * Wraps a {@link TaskListener} in a {@link ResponseProgressListener} interface
+ * Wraps a {@link TaskListener} in a {@link ResponseProgressListener} interface. Lines are buffered and written to the
+ * build log in batches, since every write to a remote build logger is a round trip over the channel, and the
+ * {@link InstallLogVerbosity} determines how much of the per-path progress makes it to the console at all. The
+ * complete log can be written to a separate stream regardless of the console verbosity.
+ * <p>
+ * If an error threshold is set, {@link #onError(String, String)} throws an {@link ErrorThresholdExceededException}
+ * once that many errors have been reported, which stops the client from reading the rest of the response.
  */
 public class JenkinsResponseProgressListener implements ResponseProgressListener {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_BUFFERED_LINES = 200;
+    private static final int MAX_BUFFERED_CHARS = 16 * 1024;
+    private static final long MAX_BUFFERED_MILLIS = 1000L;
+
     final TaskListener listener;
+    private final InstallLogVerbosity verbosity;
+    private final OutputStream fullLog;
+    private final int errorThreshold;
+
+    private final StringBuilder buffer = new StringBuilder();
+    private final Map<String, Integer> actionCounts = new TreeMap<String, Integer>();
+    private int bufferedLines = 0;
+    private long lastFlush = System.currentTimeMillis();
+    private int errors = 0;
+    private boolean thresholdExceeded = false;
 
     public JenkinsResponseProgressListener(TaskListener listener) {
+        this(listener, InstallLogVerbosity.FULL, null);
+    }
+
+    /**
+     * @param listener  the build listener
+     * @param verbosity how much of the progress to write to the build log
+     * @param fullLog   optional stream which receives every line regardless of verbosity. It is not closed by this
+     *                  listener.
+     */
+    public JenkinsResponseProgressListener(TaskListener listener, InstallLogVerbosity verbosity,
+                                           OutputStream fullLog) {
+        this(listener, verbosity, fullLog, 0);
+    }
+
+    /**
+     * @param listener       the build listener
+     * @param verbosity      how much of the progress to write to the build log
+     * @param fullLog        optional stream which receives every line regardless of verbosity. It is not closed by
+     *                       this listener.
+     * @param errorThreshold number of errors after which to abort reading the response, or 0 to never abort
+     */
+    public JenkinsResponseProgressListener(TaskListener listener, InstallLogVerbosity verbosity,
+                                           OutputStream fullLog, int errorThreshold) {
         this.listener = listener;
+        this.errorThreshold = errorThreshold;
+        this.verbosity = verbosity != null ? verbosity : InstallLogVerbosity.FULL;
+        this.fullLog = fullLog;
+    }
+
+    public synchronized void onStart(String title) {
+        actionCounts.clear();
+        errors = 0;
+        thresholdExceeded = false;
+        append(String.format("%s%n", title), verbosity != InstallLogVerbosity.ERRORS);
+    }
+
+    public synchronized void onLog(String message) {
+        append(String.format("%s%n", message), verbosity != InstallLogVerbosity.ERRORS);
     }
 
-    public void onStart(String title) {
-        listener.getLogger().printf("%s%n", title);
+    public synchronized void onMessage(String message) {
+        append(String.format("M %s%n", message), verbosity != InstallLogVerbosity.ERRORS);
     }
 
-    public void onLog(String message) {
-        listener.getLogger().printf("%s%n", message);
+    public synchronized void onProgress(String action, String path) {
+        Integer count = actionCounts.get(action);
+        actionCounts.put(action, count != null ? count + 1 : 1);
+        append(String.format("%s %s%n", action, path), verbosity == InstallLogVerbosity.FULL);
     }
 
-    public void onMessage(String message) {
-        listener.getLogger().printf("M %s%n", message);
+    public synchronized void onError(String path, String error) {
+        Integer count = actionCounts.get("E");
+        actionCounts.put("E", count != null ? count + 1 : 1);
+        append(String.format("ERROR: E %s (%s)%n", path, error), true);
+
+        errors++;
+        if (errorThreshold > 0 && errors >= errorThreshold && !thresholdExceeded) {
+            thresholdExceeded = true;
+            summarize();
+            throw new ErrorThresholdExceededException(errors);
+        }
+    }
+
+    /**
+     * @return true if the error threshold was reached since the last {@link #onStart(String)}
+     */
+    public synchronized boolean isThresholdExceeded() {
+        return thresholdExceeded;
     }
 
-    public void onProgress(String action, String path) {
-        listener.getLogger().printf("%s %s%n", action, path);
+    public synchronized int getErrorCount() {
+        return errors;
     }
 
-    public void onError(String path, String error) {
-        listener.error("E %s (%s)", path, error);
+    /**
+     * Writes the counts of each progress action reported since the last {@link #onStart(String)} when the verbosity
+     * is {@link InstallLogVerbosity#SUMMARY}. With {@link InstallLogVerbosity#FULL} every path has already been
+     * written, and {@link InstallLogVerbosity#ERRORS} writes errors only.
+     */
+    public synchronized void summarize() {
+        if (verbosity == InstallLogVerbosity.SUMMARY && !actionCounts.isEmpty()) {
+            StringBuilder summary = new StringBuilder("Summary:");
+            for (Map.Entry<String, Integer> entry : actionCounts.entrySet()) {
+                summary.append(" ").append(entry.getKey()).append("=").append(entry.getValue());
+            }
+            append(String.format("%s%n", summary), true);
+        }
+        flush();
+    }
+
+    /**
+     * Writes any buffered lines to the build log.
+     */
+    public synchronized void flush() {
+        if (buffer.length() > 0) {
+            PrintStream logger = listener.getLogger();
+            logger.print(buffer);
+            logger.flush();
+            buffer.setLength(0);
+        }
+        bufferedLines = 0;
+        lastFlush = System.currentTimeMillis();
+        if (fullLog != null) {
+            try {
+                fullLog.flush();
+            } catch (IOException ignored) { /* the console log is what matters */ }
+        }
+    }
+
+    private void append(String line, boolean toConsole) {
+        if (fullLog != null) {
+            try {
+                fullLog.write(line.getBytes(UTF_8));
+            } catch (IOException ignored) { /* the console log is what matters */ }
+        }
+
+        if (toConsole) {
+            buffer.append(line);
+            bufferedLines++;
+            if (bufferedLines >= MAX_BUFFERED_LINES || buffer.length() >= MAX_BUFFERED_CHARS
+                    || System.currentTimeMillis() - lastFlush >= MAX_BUFFERED_MILLIS) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Thrown from {@link #onError(String, String)} to stop processing a response once the error threshold is reached
+     */
+    public static final class ErrorThresholdExceededException extends RuntimeException {
+        private static final long serialVersionUID = 6084212787316478502L;
+
+        public ErrorThresholdExceededException(int errors) {
+            super(String.format("Aborted after %d installation errors", errors));
+        }
     }
 
 }
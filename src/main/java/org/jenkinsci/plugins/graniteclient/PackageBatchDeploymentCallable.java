@@ -0,0 +1,114 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DeployPackagesBuilder} to deploy an
+ * ordered list of packages to a single server in one remote call, logging in once and reusing the same client for
+ * every package. Each package is deployed as by {@link PackageDeploymentCallable}, and its result is written to the
+ * build log as soon as it is known. Deployment stops at the first package which fails.
+ */
+public final class PackageBatchDeploymentCallable extends AbstractClientFileCallable<List<PackageDeploymentResult>> {
+
+    private final LinkedHashMap<PackId, String> packageFiles;
+    private final PackageInstallOptions options;
+    private final ExistingPackageBehavior behavior;
+    private final InstallLogVerbosity logVerbosity;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param packageFiles the packages to deploy, in order, mapped to the absolute paths of their files on the node
+     */
+    public PackageBatchDeploymentCallable(GraniteClientConfig clientConfig, TaskListener listener,
+                                          Map<PackId, String> packageFiles, PackageInstallOptions options,
+                                          ExistingPackageBehavior behavior, InstallLogVerbosity logVerbosity,
+                                          RetryPolicy retryPolicy) {
+        super(clientConfig, listener);
+        this.packageFiles = new LinkedHashMap<PackId, String>(packageFiles);
+        this.options = options;
+        this.behavior = behavior;
+        this.logVerbosity = logVerbosity;
+        this.retryPolicy = retryPolicy;
+    }
+
+    private class Execution implements PackageManagerClientCallable<List<PackageDeploymentResult>> {
+        private final List<PackageDeploymentResult> results;
+
+        private Execution(List<PackageDeploymentResult> results) {
+            this.results = results;
+        }
+
+        public List<PackageDeploymentResult> doExecute(PackageManagerClient client) throws Exception {
+            for (Map.Entry<PackId, String> packageFile : packageFiles.entrySet()) {
+                PackageDeploymentCallable callable = new PackageDeploymentCallable(
+                        clientConfig, listener, packageFile.getKey(), options, behavior, logVerbosity, retryPolicy);
+
+                PackageDeploymentResult result = callable.deploy(new File(packageFile.getValue()), client);
+                results.add(result);
+                listener.getLogger().printf("Deployed %s to %s: %s%n",
+                                            packageFile.getKey(), clientConfig.getBaseUrl(), result.getResult());
+
+                if (!result.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                    break;
+                }
+            }
+            return results;
+        }
+    }
+
+    public List<PackageDeploymentResult> invoke(File f, VirtualChannel channel)
+            throws IOException, InterruptedException {
+        final List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        final long start = System.currentTimeMillis();
+        try {
+            GraniteClientExecutor.execute(new Execution(results), clientConfig, listener);
+        } catch (Exception e) {
+            e.printStackTrace(listener.fatalError("Failed to deploy packages: %s", e.getMessage()));
+            // results are added in order, so the failure belongs to the next package, usually the first after a failed
+            // login
+            if (results.size() < packageFiles.size()) {
+                PackId next = new ArrayList<PackId>(packageFiles.keySet()).get(results.size());
+                results.add(new PackageDeploymentResult(next, Result.FAILURE, System.currentTimeMillis() - start));
+            }
+        }
+        return results;
+    }
+}
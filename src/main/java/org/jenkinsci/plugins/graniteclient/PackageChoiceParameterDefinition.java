@@ -44,7 +44,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -65,15 +64,8 @@ public class PackageChoiceParameterDefinition extends ParameterDefinition {
 
         public FormValidation doCheckBaseUrl(@QueryParameter String value, @QueryParameter String credentialsId,
                                              @QueryParameter long requestTimeout, @QueryParameter long serviceTimeout) {
-            try {
-                if (!GraniteClientExecutor.checkLogin(
-                        new GraniteClientConfig(value, credentialsId, requestTimeout, serviceTimeout))) {
-                    return FormValidation.error("Failed to login to " + value);
-                }
-                return FormValidation.ok();
-            } catch (IOException e) {
-                return FormValidation.error(e.getCause(), e.getMessage());
-            }
+            return GraniteLoginChecker.validate(Collections.singletonList(value), credentialsId,
+                    requestTimeout, serviceTimeout);
         }
 
         public AbstractIdCredentialsListBoxModel doFillCredentialsIdItems(@QueryParameter String baseUrl) {
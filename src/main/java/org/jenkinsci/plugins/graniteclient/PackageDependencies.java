@@ -0,0 +1,186 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Orders packages for installation according to the dependencies declared in their META-INF/vault/properties.xml, so
+ * that every package is installed after the packages it depends on. Dependencies are matched by group and name only;
+ * dependencies on packages which are not being deployed are assumed to be satisfied on the server already. Circular
+ * dependencies cannot be satisfied by any order, so the packages involved are installed in their preferred order.
+ */
+final class PackageDependencies {
+
+    private static final String PROPERTIES_ENTRY = "META-INF/vault/properties.xml";
+    private static final String DEPENDENCIES_PROPERTY = "dependencies";
+
+    private PackageDependencies() {
+    }
+
+    /**
+     * @param packages the packages in their preferred order, which is kept wherever dependencies allow
+     * @return the packages reordered so that dependencies come first, wherever dependencies are not circular
+     */
+    static Map<PackId, FilePath> sort(Map<PackId, FilePath> packages, FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (packages.size() < 2) {
+            return packages;
+        }
+
+        // the dependencies of every package are read in one call to the node where the files are
+        ArrayList<String> paths = new ArrayList<String>();
+        for (FilePath file : packages.values()) {
+            paths.add(file.getRemote());
+        }
+        Map<String, String> declared = workspace.act(new ReadDependencies(paths));
+
+        List<PackId> remaining = new ArrayList<PackId>(packages.keySet());
+        Map<PackId, List<PackId>> dependsOn = new HashMap<PackId, List<PackId>>();
+        for (PackId packId : remaining) {
+            List<PackId> dependencies = new ArrayList<PackId>();
+            for (String[] dependency : parse(declared.get(packages.get(packId).getRemote()))) {
+                for (PackId other : remaining) {
+                    if (!other.equals(packId) && other.getGroup().equals(dependency[0])
+                            && other.getName().equals(dependency[1])) {
+                        dependencies.add(other);
+                    }
+                }
+            }
+            if (!dependencies.isEmpty()) {
+                listener.getLogger().printf("%s depends on %s%n", packId, dependencies);
+            }
+            dependsOn.put(packId, dependencies);
+        }
+
+        Map<PackId, FilePath> sorted = new LinkedHashMap<PackId, FilePath>();
+        while (!remaining.isEmpty()) {
+            PackId next = null;
+            for (PackId candidate : remaining) {
+                if (sorted.keySet().containsAll(dependsOn.get(candidate))) {
+                    next = candidate;
+                    break;
+                }
+            }
+            if (next == null) {
+                next = remaining.get(0);
+                listener.error("Circular dependency between packages %s. Installing %s first, in the order given.",
+                               remaining, next);
+            }
+            sorted.put(next, packages.get(next));
+            remaining.remove(next);
+        }
+        return Collections.unmodifiableMap(sorted);
+    }
+
+    /**
+     * Parses a vault dependencies property, which is a comma-separated list of group:name:versionRange, where the
+     * version range may itself contain a comma.
+     *
+     * @return group and name pairs
+     */
+    static List<String[]> parse(String dependencies) {
+        List<String[]> parsed = new ArrayList<String[]>();
+        if (dependencies == null) {
+            return parsed;
+        }
+
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= dependencies.length(); i++) {
+            char c = i < dependencies.length() ? dependencies.charAt(i) : ',';
+            if (c == '[' || c == '(') {
+                depth++;
+            } else if (c == ']' || c == ')') {
+                depth--;
+            } else if (c == ',' && depth <= 0) {
+                String dependency = dependencies.substring(start, i).trim();
+                if (!dependency.isEmpty()) {
+                    String[] parts = dependency.split(":", 3);
+                    if (parts.length == 1) {
+                        parsed.add(new String[]{"", parts[0]});
+                    } else {
+                        parsed.add(new String[]{parts[0], parts[1]});
+                    }
+                }
+                start = i + 1;
+                depth = 0;
+            }
+        }
+        return parsed;
+    }
+
+    private static final class ReadDependencies implements FilePath.FileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 3402317260389165262L;
+
+        private final ArrayList<String> paths;
+
+        private ReadDependencies(ArrayList<String> paths) {
+            this.paths = paths;
+        }
+
+        public Map<String, String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            HashMap<String, String> dependencies = new HashMap<String, String>();
+            for (String path : paths) {
+                ZipFile zipFile = new ZipFile(new File(path));
+                try {
+                    ZipEntry entry = zipFile.getEntry(PROPERTIES_ENTRY);
+                    if (entry != null) {
+                        InputStream in = zipFile.getInputStream(entry);
+                        try {
+                            Properties properties = new Properties();
+                            properties.loadFromXML(in);
+                            dependencies.put(path, properties.getProperty(DEPENDENCIES_PROPERTY));
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    zipFile.close();
+                }
+            }
+            return dependencies;
+        }
+    }
+}
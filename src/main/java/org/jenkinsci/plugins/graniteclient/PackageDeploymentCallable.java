@@ -34,11 +34,14 @@ import net.adamcin.granite.client.packman.DetailedResponse;
 import net.adamcin.granite.client.packman.ListResponse;
 import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.PackageManagerClient;
-import net.adamcin.granite.client.packman.ResponseProgressListener;
 import net.adamcin.granite.client.packman.SimpleResponse;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DeployPackagesBuilder}
@@ -48,29 +51,53 @@ public final class PackageDeploymentCallable extends AbstractClientFileCallable<
     private final PackId packId;
     private final PackageInstallOptions options;
     private final ExistingPackageBehavior behavior;
-    private final ResponseProgressListener progressListener;
+    private final InstallLogVerbosity logVerbosity;
+    private final RetryPolicy retryPolicy;
 
     public PackageDeploymentCallable(GraniteClientConfig clientConfig, TaskListener listener, PackId packId, PackageInstallOptions options, ExistingPackageBehavior behavior) {
+        this(clientConfig, listener, packId, options, behavior, InstallLogVerbosity.FULL);
+    }
+
+    public PackageDeploymentCallable(GraniteClientConfig clientConfig, TaskListener listener, PackId packId,
+                                     PackageInstallOptions options, ExistingPackageBehavior behavior,
+                                     InstallLogVerbosity logVerbosity) {
+        this(clientConfig, listener, packId, options, behavior, logVerbosity, RetryPolicy.NONE);
+    }
+
+    public PackageDeploymentCallable(GraniteClientConfig clientConfig, TaskListener listener, PackId packId,
+                                     PackageInstallOptions options, ExistingPackageBehavior behavior,
+                                     InstallLogVerbosity logVerbosity, RetryPolicy retryPolicy) {
         super(clientConfig, listener);
-        this.progressListener = new JenkinsResponseProgressListener(this.listener);
         this.options = options;
         this.behavior = behavior;
         this.packId = packId;
+        this.logVerbosity = logVerbosity != null ? logVerbosity : InstallLogVerbosity.FULL;
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.NONE;
     }
 
     private class Execution implements PackageManagerClientCallable<Result> {
         private final File file;
+        private final JenkinsResponseProgressListener progressListener;
+        private long uploadDuration = -1L;
+        private long installDuration = -1L;
 
-        private Execution(File file) {
+        private Execution(File file, JenkinsResponseProgressListener progressListener) {
             this.file = file;
+            this.progressListener = progressListener;
         }
 
         public Result doExecute(PackageManagerClient client) throws Exception {
             listener.getLogger().printf("Deploying %s to %s%n", file, client.getConsoleUiUrl(packId));
             client.waitForService();
-            if (client.existsOnServer(packId)) {
+            boolean exists = retryPolicy.execute(RetryPolicy.Step.READ, clientConfig, client,
+                    new PackageManagerClientCallable<Boolean>() {
+                        public Boolean doExecute(PackageManagerClient client) throws Exception {
+                            return client.existsOnServer(packId);
+                        }
+                    }, listener);
+            if (exists) {
                 listener.getLogger().println("Found existing package.");
-                if (!PackageDeploymentCallable.this.handleExisting(client, packId)) {
+                if (!PackageDeploymentCallable.this.handleExisting(client, packId, progressListener)) {
                     return Result.FAILURE;
                 } else if (behavior == ExistingPackageBehavior.SKIP) {
                     listener.getLogger().println("Will skip package upload and return SUCCESS.");
@@ -81,18 +108,65 @@ public final class PackageDeploymentCallable extends AbstractClientFileCallable<
             client.waitForService();
             listener.getLogger().println("Will attempt to upload package.");
 
-            SimpleResponse r_upload = client.upload(file, behavior == ExistingPackageBehavior.OVERWRITE, packId);
+            final boolean force = behavior == ExistingPackageBehavior.OVERWRITE;
+            final long length = file.length();
+            SimpleResponse r_upload;
+            TransferGovernor.Ticket ticket = TransferGovernor.admitUpload(clientConfig, length, listener);
+            final long uploadStart = System.currentTimeMillis();
+            try {
+                r_upload = retryPolicy.execute(
+                        force ? RetryPolicy.Step.UPLOAD_OVERWRITE : RetryPolicy.Step.UPLOAD, clientConfig, client,
+                        length, ticket, new PackageManagerClientCallable<SimpleResponse>() {
+                            public SimpleResponse doExecute(PackageManagerClient client) throws Exception {
+                                return client.upload(file, force, packId);
+                            }
+                        }, listener);
+            } finally {
+                ticket.complete(length);
+            }
             if (r_upload.isSuccess()) {
+                uploadDuration = System.currentTimeMillis() - uploadStart;
                 progressListener.onLog(r_upload.getMessage());
+                progressListener.flush();
                 listener.getLogger().println("Will attempt to install package.");
 
-                DetailedResponse r_install = client.install(packId,
-                                                            options.isRecursive(),
-                                                            options.getAutosave(),
-                                                            options.getAcHandling(),
-                                                            progressListener);
+                StreamingInstall.Outcome r_install;
+                final long installStart = System.currentTimeMillis();
+                try {
+                    r_install = retryPolicy.execute(RetryPolicy.Step.INSTALL, clientConfig, client,
+                            new PackageManagerClientCallable<StreamingInstall.Outcome>() {
+                                public StreamingInstall.Outcome doExecute(PackageManagerClient client)
+                                        throws Exception {
+                                    // the client reads the whole installation log before reporting any of it, so
+                                    // an error threshold is enforced on a streamed response instead
+                                    if (options.getErrorThreshold() > 0
+                                            && client instanceof AsyncPackageManagerClient) {
+                                        return StreamingInstall.install(clientConfig, packId, options,
+                                                ((AsyncPackageManagerClient) client).getRequestTimeout(),
+                                                progressListener);
+                                    }
+                                    return StreamingInstall.Outcome.of(client.install(packId,
+                                                          options.isRecursive(),
+                                                          options.getAutosave(),
+                                                          options.getAcHandling(),
+                                                          progressListener));
+                                }
+                            }, listener);
+                } catch (Exception e) {
+                    if (progressListener.isThresholdExceeded()) {
+                        return failForErrorThreshold(progressListener);
+                    }
+                    throw e;
+                } finally {
+                    progressListener.summarize();
+                }
+                if (progressListener.isThresholdExceeded()) {
+                    return failForErrorThreshold(progressListener);
+                }
                 if (r_install.isSuccess()) {
-                    progressListener.onLog(r_upload.getMessage());
+                    installDuration = System.currentTimeMillis() - installStart;
+                    progressListener.onLog(r_install.getMessage());
+                    progressListener.flush();
                     if (r_install.hasErrors()) {
                         //listener.getLogger().println("should be unstable");
                         return Result.UNSTABLE;
@@ -112,16 +186,72 @@ public final class PackageDeploymentCallable extends AbstractClientFileCallable<
     }
 
     public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        return deploy(f, null).getResult();
+    }
+
+    /**
+     * Deploys the package file using the given client, which must already be logged in, or using a new client if
+     * null.
+     */
+    PackageDeploymentResult deploy(File f, PackageManagerClient client) {
+        final long start = System.currentTimeMillis();
+        Result result = Result.FAILURE;
+        Execution execution = null;
+        OutputStream fullLog = null;
         try {
-            return GraniteClientExecutor.execute(new Execution(f), clientConfig, listener);
+            if (logVerbosity != InstallLogVerbosity.FULL) {
+                File logFile = getFullLogFile(f);
+                fullLog = new GZIPOutputStream(new FileOutputStream(logFile));
+                listener.getLogger().printf("Writing full installation log to %s%n", logFile);
+            }
+
+            JenkinsResponseProgressListener progressListener =
+                    new JenkinsResponseProgressListener(listener, logVerbosity, fullLog, options.getErrorThreshold());
+            try {
+                execution = new Execution(f, progressListener);
+                if (client != null) {
+                    result = execution.doExecute(client);
+                } else {
+                    result = GraniteClientExecutor.execute(execution, clientConfig, listener);
+                }
+            } finally {
+                progressListener.flush();
+            }
         } catch (Exception e) {
             e.printStackTrace(listener.fatalError("Failed to deploy package: %s", e.getMessage()));
+        } finally {
+            if (fullLog != null) {
+                try { fullLog.close(); } catch (IOException e) { /* close quietly */ }
+            }
         }
 
+        return new PackageDeploymentResult(packId, result, System.currentTimeMillis() - start,
+                                           execution != null ? execution.uploadDuration : -1L,
+                                           execution != null ? execution.installDuration : -1L);
+    }
+
+    /**
+     * The full log is written next to the package file, named for the target server so that deployments of the same
+     * package to several servers do not overwrite each other.
+     */
+    private File getFullLogFile(File packageFile) {
+        String host = clientConfig.getBaseUrl().replaceFirst("^[a-zA-Z]+://", "").replaceAll("[^a-zA-Z0-9.-]+", "_");
+        return new File(packageFile.getParentFile(), packageFile.getName() + "." + host + ".log.gz");
+    }
+
+    /**
+     * The response is abandoned when the threshold is reached, but the server is not told to stop, so it may still be
+     * working on the package when this returns.
+     */
+    private Result failForErrorThreshold(JenkinsResponseProgressListener progressListener) {
+        listener.fatalError("Stopped waiting for %s after %d errors were reported. "
+                                    + "The server may still be processing the package.",
+                            packId, progressListener.getErrorCount());
         return Result.FAILURE;
     }
 
-    private boolean handleExisting(PackageManagerClient client, PackId packId) throws Exception {
+    private boolean handleExisting(PackageManagerClient client, final PackId packId,
+                                   final JenkinsResponseProgressListener progressListener) throws Exception {
         if (behavior == ExistingPackageBehavior.IGNORE
                 || behavior == ExistingPackageBehavior.OVERWRITE
                 || behavior == ExistingPackageBehavior.SKIP) {
@@ -131,12 +261,38 @@ public final class PackageDeploymentCallable extends AbstractClientFileCallable<
 
         if (this.behavior == ExistingPackageBehavior.UNINSTALL) {
             client.waitForService();
-            ListResponse r_list = client.list(packId, false);
+            ListResponse r_list = retryPolicy.execute(RetryPolicy.Step.READ, clientConfig, client,
+                    new PackageManagerClientCallable<ListResponse>() {
+                        public ListResponse doExecute(PackageManagerClient client) throws Exception {
+                            return client.list(packId, false);
+                        }
+                    }, listener);
             if (!r_list.getResults().isEmpty() && r_list.getResults().get(0).isHasSnapshot()) {
                 this.listener.getLogger().println("Will attempt to uninstall package.");
-                DetailedResponse r_uninstall = client.uninstall(packId, progressListener);
+                DetailedResponse r_uninstall;
+                try {
+                    r_uninstall = retryPolicy.execute(RetryPolicy.Step.INSTALL, clientConfig, client,
+                            new PackageManagerClientCallable<DetailedResponse>() {
+                                public DetailedResponse doExecute(PackageManagerClient client) throws Exception {
+                                    return client.uninstall(packId, progressListener);
+                                }
+                            }, listener);
+                } catch (Exception e) {
+                    if (progressListener.isThresholdExceeded()) {
+                        failForErrorThreshold(progressListener);
+                        return false;
+                    }
+                    throw e;
+                } finally {
+                    progressListener.summarize();
+                }
+                if (progressListener.isThresholdExceeded()) {
+                    failForErrorThreshold(progressListener);
+                    return false;
+                }
                 if (r_uninstall.isSuccess()) {
                     progressListener.onLog(r_uninstall.getMessage());
+                    progressListener.flush();
                 } else {
                     this.listener.fatalError("Failed to uninstall package: %s", r_uninstall.getMessage());
                     return false;
@@ -149,9 +305,15 @@ public final class PackageDeploymentCallable extends AbstractClientFileCallable<
         if (this.behavior == ExistingPackageBehavior.UNINSTALL || this.behavior == ExistingPackageBehavior.DELETE) {
             client.waitForService();
             this.listener.getLogger().println("Will attempt to delete package.");
-            SimpleResponse r_delete = client.delete(packId);
+            SimpleResponse r_delete = retryPolicy.execute(RetryPolicy.Step.DELETE, clientConfig, client,
+                    new PackageManagerClientCallable<SimpleResponse>() {
+                        public SimpleResponse doExecute(PackageManagerClient client) throws Exception {
+                            return client.delete(packId);
+                        }
+                    }, listener);
             if (r_delete.isSuccess()) {
                 progressListener.onLog(r_delete.getMessage());
+                progressListener.flush();
             } else {
                 this.listener.fatalError("%s", r_delete.getMessage());
                 return false;
@@ -0,0 +1,151 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import net.adamcin.granite.client.packman.PackId;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pojo for the outcome of deploying or downloading a single package to or from a single server
+ */
+@ExportedBean(defaultVisibility = 3)
+public final class PackageDeploymentResult implements Serializable {
+
+    private static final long serialVersionUID = -6412384905938105227L;
+
+    private final PackId packId;
+    private final Result result;
+    private final long duration;
+    private final long uploadDuration;
+    private final long installDuration;
+
+    public PackageDeploymentResult(PackId packId, Result result, long duration) {
+        this(packId, result, duration, -1L, -1L);
+    }
+
+    /**
+     * @param uploadDuration  the time spent uploading the package, or -1 if it was not uploaded, for instance because
+     *                        it already existed
+     * @param installDuration the time spent installing the package, or -1 if it was not installed successfully
+     */
+    public PackageDeploymentResult(PackId packId, Result result, long duration, long uploadDuration,
+                                   long installDuration) {
+        this.packId = packId;
+        this.result = result;
+        this.duration = duration;
+        this.uploadDuration = uploadDuration;
+        this.installDuration = installDuration;
+    }
+
+    public PackId getPackId() {
+        return packId;
+    }
+
+    @Exported
+    public String getPackageId() {
+        return packId.toString();
+    }
+
+    @Exported
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return the time spent deploying the package, in milliseconds
+     */
+    @Exported
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the time spent uploading the package, in milliseconds, or -1 if it was not uploaded
+     */
+    @Exported
+    public long getUploadDuration() {
+        return uploadDuration;
+    }
+
+    /**
+     * @return the time spent installing the package, in milliseconds, or -1 if it was not installed
+     */
+    @Exported
+    public long getInstallDuration() {
+        return installDuration;
+    }
+
+    /**
+     * @return true if the package was uploaded and installed on the server
+     */
+    @Exported
+    public boolean isDeployed() {
+        return uploadDuration >= 0L && installDuration >= 0L;
+    }
+
+    /**
+     * @param expected the number of packages which should have a result
+     * @return the worst of the results, or FAILURE if there are fewer than expected
+     */
+    public static Result combine(List<PackageDeploymentResult> results, int expected) {
+        Result combined = results.size() < expected ? Result.FAILURE : Result.SUCCESS;
+        for (PackageDeploymentResult result : results) {
+            combined = combined.combine(result.getResult());
+        }
+        return combined;
+    }
+
+    /**
+     * @param packIds the packages in the order to report them in
+     * @return the results of the packages in that order, leaving out packages without a result
+     */
+    static List<PackageDeploymentResult> inOrder(Collection<PackId> packIds,
+                                                 Collection<PackageDeploymentResult> results) {
+        Map<PackId, PackageDeploymentResult> byPackId = new HashMap<PackId, PackageDeploymentResult>();
+        for (PackageDeploymentResult result : results) {
+            byPackId.put(result.getPackId(), result);
+        }
+        List<PackageDeploymentResult> ordered = new ArrayList<PackageDeploymentResult>();
+        for (PackId packId : packIds) {
+            PackageDeploymentResult result = byPackId.get(packId);
+            if (result != null) {
+                ordered.add(result);
+            }
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.FilePath;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identifies the package files of a build's deployment. The MD5 digest, which checkpoints and the
+ * {@link DeploymentLedger} compare across builds, reads the whole file, so it is computed only when one of them needs
+ * it, and then only once per build however many servers are deployed to. Coalescing with deployments of other builds
+ * uses a fingerprint of the file's size and last modified time instead, which does not read the file.
+ */
+final class PackageDigests {
+
+    private final Map<PackId, FilePath> files;
+    private final Map<PackId, String> digests = new HashMap<PackId, String>();
+
+    PackageDigests(Map<PackId, FilePath> files) {
+        this.files = files;
+    }
+
+    /**
+     * @return the MD5 digest of the package file
+     */
+    synchronized String get(PackId packId) throws IOException, InterruptedException {
+        String digest = digests.get(packId);
+        if (digest == null) {
+            digest = files.get(packId).digest();
+            digests.put(packId, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * @return the size and last modified time of the package file
+     */
+    String getFingerprint(PackId packId) throws IOException, InterruptedException {
+        FilePath file = files.get(packId);
+        return file.length() + "@" + file.lastModified();
+    }
+}
@@ -30,82 +30,342 @@ package org.jenkinsci.plugins.graniteclient;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
 import net.adamcin.granite.client.packman.DownloadResponse;
+import net.adamcin.granite.client.packman.ListResponse;
+import net.adamcin.granite.client.packman.ListResult;
 import net.adamcin.granite.client.packman.PackId;
 import net.adamcin.granite.client.packman.PackageManagerClient;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DownloadPackagesBuilder}
+ * Implementation of {@link hudson.FilePath.FileCallable} used by the {@link DownloadPackagesBuilder}. Package filters
+ * are resolved against a single list of the packages on the server, and the packages are downloaded up to
+ * maxParallelDownloads at a time, each over its own logged in client.
  */
-public class PackageDownloadCallable extends AbstractClientFileCallable<Result> {
+public class PackageDownloadCallable extends AbstractClientFileCallable<List<PackageDeploymentResult>> {
+
+    /**
+     * filter version which selects only the highest version of each matching package
+     */
+    public static final String LATEST = "latest";
 
     private final List<PackId> packIds;
+    private final List<String> packageFilters;
+    private final Set<PackId> excluded;
     private final boolean ignoreErrors;
+    private final RetryPolicy retryPolicy;
+    private final int maxParallelDownloads;
 
     public PackageDownloadCallable(GraniteClientConfig clientConfig, TaskListener listener,
                                    List<PackId> packIds, boolean ignoreErrors) {
+        this(clientConfig, listener, packIds, ignoreErrors, RetryPolicy.NONE);
+    }
+
+    public PackageDownloadCallable(GraniteClientConfig clientConfig, TaskListener listener,
+                                   List<PackId> packIds, boolean ignoreErrors, RetryPolicy retryPolicy) {
+        this(clientConfig, listener, packIds, Collections.<String>emptyList(), ignoreErrors, retryPolicy, 1);
+    }
+
+    public PackageDownloadCallable(GraniteClientConfig clientConfig, TaskListener listener,
+                                   List<PackId> packIds, List<String> packageFilters, boolean ignoreErrors,
+                                   RetryPolicy retryPolicy, int maxParallelDownloads) {
+        this(clientConfig, listener, packIds, packageFilters, Collections.<PackId>emptySet(), ignoreErrors,
+             retryPolicy, maxParallelDownloads);
+    }
+
+    /**
+     * @param packageFilters filters in the group:name:version format of {@link DefaultPackIdFilter}, where a version
+     *                       of "latest" selects the highest version of each matching package
+     * @param excluded       packages which are not downloaded even if they match a filter, such as those already
+     *                       downloaded from another server
+     */
+    public PackageDownloadCallable(GraniteClientConfig clientConfig, TaskListener listener,
+                                   List<PackId> packIds, List<String> packageFilters, Collection<PackId> excluded,
+                                   boolean ignoreErrors, RetryPolicy retryPolicy, int maxParallelDownloads) {
         super(clientConfig, listener);
-        this.packIds = packIds;
+        this.packIds = new ArrayList<PackId>(packIds);
+        this.packageFilters = new ArrayList<String>(packageFilters);
+        this.excluded = new HashSet<PackId>(excluded);
         this.ignoreErrors = ignoreErrors;
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.NONE;
+        this.maxParallelDownloads = Math.max(1, maxParallelDownloads);
+    }
+
+    /**
+     * @return true if the string is a package filter rather than a single package ID
+     */
+    public static boolean isPackageFilter(String packageId) {
+        String trimmed = packageId.trim();
+        return trimmed.contains(DefaultPackIdFilter.WILDCARD) || trimmed.endsWith(":" + LATEST);
     }
 
-    private class Execution implements PackageManagerClientCallable<Result> {
+    private class Execution implements PackageManagerClientCallable<List<PackageDeploymentResult>> {
         final File toDirectory;
+        final List<PackageDeploymentResult> results;
+        List<PackId> resolved;
 
-        private Execution(File toDirectory) {
+        private Execution(File toDirectory, List<PackageDeploymentResult> results) {
             this.toDirectory = toDirectory;
+            this.results = results;
         }
 
-        public Result doExecute(PackageManagerClient client) throws Exception {
-            Result result = Result.SUCCESS;
-            for (PackId packId : packIds) {
-                client.waitForService();
-                listener.getLogger().printf(
-                        "Checking for package %s on server %s%n", packId, clientConfig.getBaseUrl()
-                );
-                if (client.existsOnServer(packId)) {
-                    listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
-                    listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
-
-                    DownloadResponse response = client.downloadToDirectory(packId, toDirectory);
-                    listener.getLogger().printf("Downloaded %d bytes to file %s.%n", response.getLength(), response.getContent());
-                    listener.getLogger().printf("Verifying downloaded package...%n");
-                    PackId reId = PackId.identifyPackage(response.getContent());
-                    if (packId.equals(reId)) {
-                        listener.getLogger().printf("Package verified as %s.%n", packId);
-                    } else {
-                        throw new Exception("Package verification failed: " + response.getContent());
+        /**
+         * The first worker downloads over the given client, and each other worker logs in with a client of its own,
+         * since the client's request timeout is set for each step and would otherwise be changed under the other
+         * workers' requests. A worker which fails to log in leaves the packages to the others.
+         */
+        public List<PackageDeploymentResult> doExecute(final PackageManagerClient client) throws Exception {
+            resolved = resolve(client);
+
+            final AtomicBoolean failed = new AtomicBoolean(false);
+            final AtomicInteger next = new AtomicInteger();
+            final PackageDeploymentResult[] outcomes = new PackageDeploymentResult[resolved.size()];
+            final PackageManagerClientCallable<Void> worker = new PackageManagerClientCallable<Void>() {
+                public Void doExecute(PackageManagerClient client) throws Exception {
+                    downloadNext(client, next, outcomes, failed);
+                    return null;
+                }
+            };
+
+            int workers = Math.max(1, Math.min(maxParallelDownloads, resolved.size()));
+            ExecutorService executor = Executors.newFixedThreadPool(workers, new DaemonThreadFactory());
+            try {
+                List<Future<Void>> running = new ArrayList<Future<Void>>();
+                for (int i = 0; i < workers; i++) {
+                    final boolean first = i == 0;
+                    running.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            return first ? worker.doExecute(client)
+                                    : GraniteClientExecutor.execute(worker, clientConfig, listener);
+                        }
+                    }));
+                }
+
+                for (Future<Void> download : running) {
+                    try {
+                        download.get();
+                    } catch (ExecutionException e) {
+                        listener.error("Failed to open another download connection to %s: %s",
+                                       clientConfig.getBaseUrl(), e.getCause().getMessage());
                     }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
 
-                } else {
-                    listener.error("Package %s does not exist on server.", packId);
-                    if (ignoreErrors) {
-                        result = Result.UNSTABLE.combine(result);
-                    } else  {
-                        return Result.FAILURE;
+            for (PackageDeploymentResult result : outcomes) {
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Downloads packages in turn until none are left, skipping the rest after the first failure
+         */
+        private void downloadNext(PackageManagerClient client, AtomicInteger next,
+                                  PackageDeploymentResult[] outcomes, AtomicBoolean failed) {
+            int index;
+            while ((index = next.getAndIncrement()) < resolved.size()) {
+                if (failed.get()) {
+                    continue;
+                }
+                final PackId packId = resolved.get(index);
+                final long start = System.currentTimeMillis();
+                try {
+                    outcomes[index] = download(client, packId, toDirectory);
+                    if (!outcomes[index].getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                        failed.set(true);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(listener.error("Failed to download %s: %s", packId, e.getMessage()));
+                    if (!ignoreErrors) {
+                        failed.set(true);
+                    }
+                    outcomes[index] = new PackageDeploymentResult(packId,
+                                                                  ignoreErrors ? Result.UNSTABLE : Result.FAILURE,
+                                                                  System.currentTimeMillis() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the package IDs followed by the packages matching the filters on the server, which are listed only once
+     * and only when there are filters
+     */
+    private List<PackId> resolve(PackageManagerClient client) throws Exception {
+        List<PackId> resolved = new ArrayList<PackId>(packIds);
+        resolved.removeAll(excluded);
+        if (packageFilters.isEmpty()) {
+            return resolved;
+        }
+
+        client.waitForService();
+        ListResponse response = retryPolicy.execute(RetryPolicy.Step.READ, clientConfig, client,
+                new PackageManagerClientCallable<ListResponse>() {
+                    public ListResponse doExecute(PackageManagerClient client) throws Exception {
+                        return client.list();
                     }
+                }, listener);
+        if (!response.isSuccess()) {
+            throw new IOException("Failed to list packages: " + response.getMessage());
+        }
+
+        List<PackId> available = new ArrayList<PackId>();
+        if (response.getResults() != null) {
+            for (ListResult result : response.getResults()) {
+                available.add(result.getPackId());
+            }
+        }
+
+        for (String packageFilter : packageFilters) {
+            List<PackId> matches = resolveFilter(packageFilter, available);
+            for (PackId packId : matches) {
+                if (!resolved.contains(packId) && !excluded.contains(packId)) {
+                    resolved.add(packId);
                 }
             }
 
-            return result;
+            if (matches.isEmpty()) {
+                if (ignoreErrors) {
+                    listener.error("No package on server matches filter %s.", packageFilter);
+                } else {
+                    throw new IOException("No package on server matches filter " + packageFilter);
+                }
+            } else {
+                listener.getLogger().printf("Filter %s matches %d packages.%n", packageFilter, matches.size());
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the available packages which match the filter, highest versions first
+     */
+    static List<PackId> resolveFilter(String packageFilter, Collection<PackId> available) {
+        String filter = packageFilter.trim();
+        boolean latest = filter.endsWith(":" + LATEST);
+        if (latest) {
+            filter = filter.substring(0, filter.length() - LATEST.length()) + DefaultPackIdFilter.WILDCARD;
+        }
+        DefaultPackIdFilter packIdFilter = DefaultPackIdFilter.parse(filter);
+
+        // highest versions first, so the first match of each group:name is the latest
+        List<PackId> sorted = new ArrayList<PackId>(available);
+        Collections.sort(sorted, Collections.reverseOrder());
+
+        List<PackId> matches = new ArrayList<PackId>();
+        Set<String> matchedNames = new HashSet<String>();
+        for (PackId packId : sorted) {
+            String packageName = packId.getGroup() + ":" + packId.getName();
+            if (packIdFilter.includes(packId) && !(latest && matchedNames.contains(packageName))) {
+                matchedNames.add(packageName);
+                matches.add(packId);
+            }
         }
+        return matches;
     }
 
-    public Result invoke(File toDirectory, VirtualChannel channel) throws IOException, InterruptedException {
+    private PackageDeploymentResult download(PackageManagerClient client, final PackId packId,
+                                             final File toDirectory) throws Exception {
+        final long start = System.currentTimeMillis();
+        client.waitForService();
+        listener.getLogger().printf(
+                "Checking for package %s on server %s%n", packId, clientConfig.getBaseUrl()
+        );
+        boolean exists = retryPolicy.execute(RetryPolicy.Step.READ, clientConfig, client,
+                new PackageManagerClientCallable<Boolean>() {
+                    public Boolean doExecute(PackageManagerClient client) throws Exception {
+                        return client.existsOnServer(packId);
+                    }
+                }, listener);
+        if (exists) {
+            listener.getLogger().printf("Found package: %s%n", client.getConsoleUiUrl(packId));
+            listener.getLogger().printf("Downloading %s to %s%n", packId, toDirectory);
 
+            DownloadResponse response = null;
+            final long expectedSize = TransferGovernor.getDownloadSize(clientConfig, packId);
+            TransferGovernor.Ticket ticket = TransferGovernor.admitDownload(clientConfig, packId, listener);
+            final long downloadStart = System.currentTimeMillis();
+            try {
+                response = retryPolicy.execute(RetryPolicy.Step.DOWNLOAD, clientConfig, client, expectedSize, ticket,
+                        new PackageManagerClientCallable<DownloadResponse>() {
+                            public DownloadResponse doExecute(PackageManagerClient client) throws Exception {
+                                return client.downloadToDirectory(packId, toDirectory);
+                            }
+                        }, listener);
+            } finally {
+                ticket.complete(response != null ? response.getLength() : -1L);
+            }
+            if (expectedSize < 0L) {
+                // the first download of a package has no size to scale its timeout by, but still counts for the next
+                AdaptiveTimeouts.recordTransfer(clientConfig.getBaseUrl(), RetryPolicy.Step.DOWNLOAD.name(),
+                                                System.currentTimeMillis() - downloadStart, response.getLength());
+            }
+            listener.getLogger().printf("Downloaded %d bytes to file %s.%n", response.getLength(), response.getContent());
+            listener.getLogger().printf("Verifying downloaded package...%n");
+            PackId reId = PackId.identifyPackage(response.getContent());
+            if (packId.equals(reId)) {
+                listener.getLogger().printf("Package verified as %s.%n", packId);
+                return new PackageDeploymentResult(packId, Result.SUCCESS, System.currentTimeMillis() - start);
+            } else {
+                throw new Exception("Package verification failed: " + response.getContent());
+            }
+
+        } else {
+            listener.error("Package %s does not exist on server.", packId);
+            return new PackageDeploymentResult(packId, ignoreErrors ? Result.UNSTABLE : Result.FAILURE,
+                                               System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return the result of each package which was downloaded or attempted. Downloads which have not started are
+     * skipped after the first error which is not ignored.
+     * @throws IOException if the package filters could not be resolved, or if the download failed in a way which
+     * cannot be attributed to any package
+     */
+    public List<PackageDeploymentResult> invoke(File toDirectory, VirtualChannel channel)
+            throws IOException, InterruptedException {
+        final List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        final long start = System.currentTimeMillis();
+        Execution execution = new Execution(toDirectory, results);
         try {
-            return GraniteClientExecutor.execute(new Execution(toDirectory), clientConfig, listener);
+            GraniteClientExecutor.execute(execution, clientConfig, listener);
         } catch (Exception e) {
-            e.printStackTrace(listener.fatalError("Failed to download packages.", e.getMessage()));
-            if (ignoreErrors) {
-                return Result.UNSTABLE;
+            e.printStackTrace(listener.fatalError("Failed to download packages: %s", e.getMessage()));
+            List<PackId> attempted = execution.resolved != null ? execution.resolved : packIds;
+            if (execution.resolved == null && !packageFilters.isEmpty() && !ignoreErrors) {
+                throw new IOException("Failed to resolve package filters on " + clientConfig.getBaseUrl(), e);
+            }
+            // results are added in order, so the failure belongs to the next package. When there is none, such as
+            // when only filters were given and the login or the listing failed, an empty list would read as success.
+            if (results.size() < attempted.size()) {
+                results.add(new PackageDeploymentResult(attempted.get(results.size()),
+                                                        ignoreErrors ? Result.UNSTABLE : Result.FAILURE,
+                                                        System.currentTimeMillis() - start));
             } else {
-                return Result.FAILURE;
+                throw new IOException("Failed to download packages from " + clientConfig.getBaseUrl(), e);
             }
         }
+        return results;
     }
 }
@@ -39,11 +39,17 @@ public class PackageInstallOptions implements Serializable {
     private final boolean recursive;
     private final int autosave;
     private final ACHandling acHandling;
+    private final int errorThreshold;
 
     public PackageInstallOptions(boolean recursive, int autosave, ACHandling acHandling) {
+        this(recursive, autosave, acHandling, 0);
+    }
+
+    public PackageInstallOptions(boolean recursive, int autosave, ACHandling acHandling, int errorThreshold) {
         this.recursive = recursive;
         this.autosave = autosave;
         this.acHandling = acHandling == null ? ACHandling.IGNORE : acHandling;
+        this.errorThreshold = Math.max(0, errorThreshold);
     }
 
     public boolean isRecursive() {
@@ -57,4 +63,11 @@ public class PackageInstallOptions implements Serializable {
     public ACHandling getAcHandling() {
         return acHandling;
     }
+
+    /**
+     * @return the number of install errors after which the installation is aborted, or 0 to never abort
+     */
+    public int getErrorThreshold() {
+        return errorThreshold;
+    }
 }
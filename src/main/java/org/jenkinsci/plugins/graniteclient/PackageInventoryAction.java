@@ -0,0 +1,247 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Api;
+import net.adamcin.granite.client.packman.ListResult;
+import net.adamcin.granite.client.packman.PackId;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Build action which holds the package inventory scanned by the {@link PackageInventoryBuilder} as a matrix of
+ * packages by server. A package has drifted when the versions installed differ between servers, including when it is
+ * installed on some servers but not others. The matrix is shown at {@code crxInventory} and exported through the
+ * remote API at {@code crxInventory/api}.
+ */
+@ExportedBean
+public class PackageInventoryAction implements Action {
+
+    private final List<String> hosts;
+    private final Map<String, String> failures;
+    private final List<Row> rows;
+
+    private PackageInventoryAction(List<String> hosts, Map<String, String> failures, List<Row> rows) {
+        this.hosts = hosts;
+        this.failures = failures;
+        this.rows = rows;
+    }
+
+    /**
+     * @param listings the package list of each server which was scanned, in server order
+     * @param failures the error for each server which could not be scanned
+     */
+    static PackageInventoryAction create(Map<String, List<ListResult>> listings, Map<String, String> failures) {
+        List<String> hosts = new ArrayList<String>(listings.keySet());
+
+        Map<String, Map<String, Cell>> packages = new TreeMap<String, Map<String, Cell>>();
+        for (Map.Entry<String, List<ListResult>> listing : listings.entrySet()) {
+            if (listing.getValue() == null) {
+                continue;
+            }
+            for (ListResult result : listing.getValue()) {
+                PackId packId = result.getPackId();
+                String packageName = packId.getGroup() + ":" + packId.getName();
+                Map<String, Cell> cells = packages.get(packageName);
+                if (cells == null) {
+                    cells = new LinkedHashMap<String, Cell>();
+                    for (String host : hosts) {
+                        cells.put(host, new Cell(host));
+                    }
+                    packages.put(packageName, cells);
+                }
+                cells.get(listing.getKey()).add(result);
+            }
+        }
+
+        List<Row> rows = new ArrayList<Row>();
+        for (Map.Entry<String, Map<String, Cell>> row : packages.entrySet()) {
+            rows.add(new Row(row.getKey(), new ArrayList<Cell>(row.getValue().values())));
+        }
+        return new PackageInventoryAction(hosts, new LinkedHashMap<String, String>(failures), rows);
+    }
+
+    public String getIconFileName() {
+        return "package.png";
+    }
+
+    public String getDisplayName() {
+        return "CRX Package Inventory";
+    }
+
+    public String getUrlName() {
+        return "crxInventory";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return the servers which were scanned, in the order of the matrix columns
+     */
+    @Exported
+    public List<String> getHosts() {
+        return Collections.unmodifiableList(hosts);
+    }
+
+    @Exported
+    public List<String> getFailedHosts() {
+        return new ArrayList<String>(failures.keySet());
+    }
+
+    /**
+     * @return the error for each server which could not be scanned
+     */
+    public Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    @Exported(inline = true)
+    public List<Row> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    public List<Row> getDriftedRows() {
+        List<Row> drifted = new ArrayList<Row>();
+        for (Row row : rows) {
+            if (row.isDrift()) {
+                drifted.add(row);
+            }
+        }
+        return drifted;
+    }
+
+    /**
+     * The versions of a package on each server
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Row {
+        private final String packageName;
+        private final List<Cell> cells;
+
+        private Row(String packageName, List<Cell> cells) {
+            this.packageName = packageName;
+            this.cells = cells;
+        }
+
+        /**
+         * @return the package group and name
+         */
+        @Exported
+        public String getPackageName() {
+            return packageName;
+        }
+
+        @Exported(inline = true)
+        public List<Cell> getCells() {
+            return Collections.unmodifiableList(cells);
+        }
+
+        @Exported
+        public boolean isDrift() {
+            Set<String> installed = new HashSet<String>();
+            for (Cell cell : cells) {
+                installed.add(cell.getInstalled());
+            }
+            return installed.size() > 1;
+        }
+    }
+
+    /**
+     * The versions of a package on one server
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Cell {
+        private final String baseUrl;
+        private final List<String> installed = new ArrayList<String>();
+        private final List<String> uploaded = new ArrayList<String>();
+        private boolean needsRewrap;
+
+        private Cell(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        private void add(ListResult result) {
+            String version = result.getPackId().getVersion();
+            if (version == null || version.isEmpty()) {
+                version = "(unversioned)";
+            }
+            if (result.isHasSnapshot()) {
+                installed.add(version);
+            } else {
+                uploaded.add(version);
+            }
+            needsRewrap |= result.isNeedsRewrap();
+        }
+
+        @Exported
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        /**
+         * @return the installed versions, which have a snapshot on the server, or an empty string if none is
+         */
+        @Exported
+        public String getInstalled() {
+            List<String> sorted = new ArrayList<String>(installed);
+            Collections.sort(sorted);
+            return Util.join(sorted, ", ");
+        }
+
+        /**
+         * @return the versions which are uploaded but not installed
+         */
+        @Exported
+        public String getUploaded() {
+            List<String> sorted = new ArrayList<String>(uploaded);
+            Collections.sort(sorted);
+            return Util.join(sorted, ", ");
+        }
+
+        /**
+         * @return true if content covered by the package was modified since it was built, so it needs a rewrap
+         */
+        @Exported
+        public boolean isNeedsRewrap() {
+            return needsRewrap;
+        }
+    }
+}
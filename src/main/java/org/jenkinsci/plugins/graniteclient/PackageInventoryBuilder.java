@@ -0,0 +1,282 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import net.adamcin.granite.client.packman.ListResponse;
+import net.adamcin.granite.client.packman.ListResult;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Implementation of the "Scan CRX Package Inventory" build step, which lists the packages on many servers at once
+ * and records them on the build as a {@link PackageInventoryAction}
+ */
+public class PackageInventoryBuilder extends Builder {
+
+    private static final int DEFAULT_MAX_PARALLEL_HOSTS = 8;
+
+    private String baseUrls;
+    private String credentialsId;
+    private long requestTimeout;
+    private long serviceTimeout;
+    private int maxParallelHosts;
+    private boolean failOnDrift;
+
+    @DataBoundConstructor
+    public PackageInventoryBuilder(String baseUrls, String credentialsId, long requestTimeout, long serviceTimeout,
+                                   int maxParallelHosts, boolean failOnDrift) {
+        this.baseUrls = baseUrls;
+        this.credentialsId = credentialsId;
+        this.requestTimeout = requestTimeout;
+        this.serviceTimeout = serviceTimeout;
+        this.maxParallelHosts = maxParallelHosts;
+        this.failOnDrift = failOnDrift;
+    }
+
+    public String getBaseUrls() {
+        if (baseUrls != null) {
+            return baseUrls.trim();
+        } else {
+            return "";
+        }
+    }
+
+    public void setBaseUrls(String baseUrls) {
+        this.baseUrls = baseUrls;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = credentialsId;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public long getServiceTimeout() {
+        return serviceTimeout;
+    }
+
+    public void setServiceTimeout(long serviceTimeout) {
+        this.serviceTimeout = serviceTimeout;
+    }
+
+    public int getMaxParallelHosts() {
+        return maxParallelHosts > 0 ? maxParallelHosts : DEFAULT_MAX_PARALLEL_HOSTS;
+    }
+
+    public void setMaxParallelHosts(int maxParallelHosts) {
+        this.maxParallelHosts = maxParallelHosts;
+    }
+
+    public boolean isFailOnDrift() {
+        return failOnDrift;
+    }
+
+    public void setFailOnDrift(boolean failOnDrift) {
+        this.failOnDrift = failOnDrift;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, final BuildListener listener)
+            throws InterruptedException, IOException {
+
+        Result result = build.getResult();
+        if (result == null) {
+            result = Result.SUCCESS;
+        }
+
+        List<String> hosts = listBaseUrls(build, listener);
+        if (hosts.isEmpty()) {
+            listener.getLogger().println("No servers to scan.");
+            return true;
+        }
+
+        Map<String, List<ListResult>> listings = new LinkedHashMap<String, List<ListResult>>();
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(getMaxParallelHosts(), hosts.size()),
+                                                                new DaemonThreadFactory());
+        try {
+            Map<String, Future<List<ListResult>>> scans = new LinkedHashMap<String, Future<List<ListResult>>>();
+            for (String baseUrl : hosts) {
+                scans.put(baseUrl, executor.submit(new Scan(baseUrl, listener)));
+            }
+
+            for (Map.Entry<String, Future<List<ListResult>>> scan : scans.entrySet()) {
+                try {
+                    listings.put(scan.getKey(), scan.getValue().get());
+                } catch (ExecutionException e) {
+                    listener.error("Failed to list packages on %s: %s", scan.getKey(), e.getCause().getMessage());
+                    failures.put(scan.getKey(), String.valueOf(e.getCause().getMessage()));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        PackageInventoryAction inventory = PackageInventoryAction.create(listings, failures);
+        build.addAction(inventory);
+
+        List<PackageInventoryAction.Row> drifted = inventory.getDriftedRows();
+        listener.getLogger().printf("Scanned %d packages on %d of %d servers. %d packages differ between servers.%n",
+                                    inventory.getRows().size(), listings.size(), hosts.size(), drifted.size());
+        for (PackageInventoryAction.Row row : drifted) {
+            listener.getLogger().printf("Drift in %s:%n", row.getPackageName());
+            for (PackageInventoryAction.Cell cell : row.getCells()) {
+                listener.getLogger().printf("    %s: %s%n", cell.getBaseUrl(),
+                                            cell.getInstalled().isEmpty() ? "not installed" : cell.getInstalled());
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            result = result.combine(Result.FAILURE);
+        } else if (isFailOnDrift() && !drifted.isEmpty()) {
+            result = result.combine(Result.UNSTABLE);
+        }
+        build.setResult(result);
+
+        return result.isBetterOrEqualTo(Result.UNSTABLE);
+    }
+
+    /**
+     * Lists all the packages on one server
+     */
+    private class Scan implements Callable<List<ListResult>> {
+        private final String baseUrl;
+        private final TaskListener listener;
+
+        private Scan(String baseUrl, TaskListener listener) {
+            this.baseUrl = baseUrl;
+            this.listener = listener;
+        }
+
+        public List<ListResult> call() throws Exception {
+            HostConcurrencyLimiter limiter = HostConcurrencyLimiter.forBaseUrl(
+                    baseUrl, GraniteAHCFactory.getFactoryInstance().getMaxConcurrentOperationsPerHost());
+            limiter.acquire(listener);
+            try {
+                GraniteClientConfig config =
+                        new GraniteClientConfig(baseUrl, credentialsId, requestTimeout, serviceTimeout);
+                return GraniteClientExecutor.execute(new PackageManagerClientCallable<List<ListResult>>() {
+                    public List<ListResult> doExecute(PackageManagerClient client) throws Exception {
+                        ListResponse response = client.list();
+                        if (!response.isSuccess()) {
+                            throw new IOException(response.getMessage());
+                        }
+                        return response.getResults();
+                    }
+                }, config, listener);
+            } finally {
+                limiter.release();
+            }
+        }
+    }
+
+    private List<String> listBaseUrls(AbstractBuild<?, ?> build, TaskListener listener) {
+        try {
+            return parseBaseUrls(TokenMacro.expandAll(build, listener, getBaseUrls()));
+        } catch (Exception e) {
+            listener.error("failed to expand tokens in: %s%n", getBaseUrls());
+        }
+        return parseBaseUrls(getBaseUrls());
+    }
+
+    private static List<String> parseBaseUrls(String value) {
+        List<String> _baseUrls = new ArrayList<String>();
+        for (String url : value.split("(\\r)?\\n")) {
+            if (url.trim().length() > 0 && !_baseUrls.contains(url.trim())) {
+                _baseUrls.add(url.trim());
+            }
+        }
+        return Collections.unmodifiableList(_baseUrls);
+    }
+
+    @Extension // This indicates to Jenkins that this is an implementation of an extension point.
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        public AbstractIdCredentialsListBoxModel doFillCredentialsIdItems(@QueryParameter String baseUrls) {
+            List<String> _baseUrls = parseBaseUrls(baseUrls);
+
+            if (!_baseUrls.isEmpty()) {
+                return GraniteCredentialsListBoxModel.fillItems(_baseUrls.iterator().next());
+            } else {
+                return GraniteCredentialsListBoxModel.fillItems();
+            }
+        }
+
+        public FormValidation doCheckBaseUrls(@QueryParameter String value, @QueryParameter String credentialsId,
+                                              @QueryParameter long requestTimeout, @QueryParameter long serviceTimeout) {
+            return GraniteLoginChecker.validate(parseBaseUrls(value), credentialsId, requestTimeout, serviceTimeout);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Scan CRX Package Inventory";
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.PackId;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The size and last modified time of a package on a server, as reported by the package manager list service. The
+ * list in the client API only identifies the packages, so these are read from the JSON list response directly, and
+ * they tell whether a package was rebuilt under the same version since it was last downloaded.
+ */
+final class PackageMetadata {
+
+    private final PackId packId;
+    private final long size;
+    private final long lastModified;
+
+    PackageMetadata(PackId packId, long size, long lastModified) {
+        this.packId = packId;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    PackId getPackId() {
+        return packId;
+    }
+
+    /**
+     * @return the size of the package file in bytes, or -1 if the server did not report it
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return when the package was last modified or, if it never was, created, or -1 if the server reported neither
+     */
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return true if both packages are known to have the same size and last modified time
+     */
+    boolean isSameAs(long otherSize, long otherLastModified) {
+        return size >= 0L && lastModified >= 0L && size == otherSize && lastModified == otherLastModified;
+    }
+
+    /**
+     * Parses a package manager list response
+     *
+     * @return the metadata of each listed package, by package ID
+     */
+    static Map<PackId, PackageMetadata> parse(String json) {
+        Map<PackId, PackageMetadata> listed = new LinkedHashMap<PackId, PackageMetadata>();
+        JSONArray results = JSONObject.fromObject(json).optJSONArray("results");
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                PackId packId = PackId.parsePid(result.optString("pid"));
+                if (packId != null) {
+                    listed.put(packId, new PackageMetadata(packId, result.optLong("size", -1L),
+                                                           result.optLong("lastModified",
+                                                                          result.optLong("created", -1L))));
+                }
+            }
+        }
+        return listed;
+    }
+}
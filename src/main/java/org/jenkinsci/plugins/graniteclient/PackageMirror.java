@@ -0,0 +1,397 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically syncs the packages matching the globally configured mirror filters from each mirror server into a
+ * directory of its own under the Jenkins home, so that download steps which download from that server can copy them
+ * from there. Each sync lists the packages on each server once, with their sizes and last modified times, and
+ * downloads only the matching packages which are not in the mirror yet or which changed since they were mirrored,
+ * such as a package rebuilt under the same version. The mirrored packages are kept in an index along with the
+ * metadata they were downloaded with, so that finding a package in the mirror does not open any package files.
+ */
+@Extension
+public class PackageMirror extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(PackageMirror.class.getName());
+
+    private static final String DIRECTORY_NAME = "crx-package-mirror";
+    private static final String INDEX_FILE_NAME = "index.xml";
+    private static final String PARTIAL_DIRECTORY_NAME = ".partial";
+    private static final String PACKAGES_PATH = "/etc/packages/";
+
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    /**
+     * lower bound of the request timeout of a sync, which runs unattended and must not wait on a server forever
+     */
+    private static final long MIN_REQUEST_TIMEOUT = MIN;
+
+    /**
+     * how long a sync waits for the package manager of a server to become available
+     */
+    private static final long SERVICE_TIMEOUT = 5L * MIN;
+
+    private static Index index;
+
+    private long lastSync;
+
+    public PackageMirror() {
+        super("CRX package mirror sync");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        // checked every minute, so that changes to the configured interval take effect without a restart
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        GraniteAHCFactory factory = GraniteAHCFactory.getFactoryInstance();
+        long interval = factory.getMirrorSyncIntervalInMinutes() * MIN;
+        if (interval <= 0L || System.currentTimeMillis() - lastSync < interval) {
+            return;
+        }
+        lastSync = System.currentTimeMillis();
+
+        List<String> packageFilters = parseLines(factory.getMirrorPackageFilters());
+        if (packageFilters.isEmpty() || getDirectory() == null) {
+            return;
+        }
+
+        for (String baseUrl : parseLines(factory.getMirrorBaseUrls())) {
+            GraniteClientConfig config = getSyncConfig(factory, baseUrl);
+            try {
+                sync(config, packageFilters, listener);
+            } catch (IOException e) {
+                listener.error("Failed to sync package mirror from %s: %s", baseUrl, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the config to sync from the server with, using the global request timeout, but no less than a minute
+     */
+    static GraniteClientConfig getSyncConfig(GraniteAHCFactory factory, String baseUrl) {
+        return new GraniteClientConfig(baseUrl, factory.getCredentialsId(),
+                                       Math.max(factory.getRequestTimeoutInMs(), MIN_REQUEST_TIMEOUT),
+                                       SERVICE_TIMEOUT, true);
+    }
+
+    /**
+     * Removes the mirrored packages which the server no longer lists, then downloads the packages matching the
+     * filters which are not in the mirror of the server, or which changed, into a scratch directory, and moves them
+     * into the mirror, replacing the previous copies.
+     */
+    private void sync(GraniteClientConfig config, List<String> packageFilters, TaskListener listener)
+            throws IOException, InterruptedException {
+        final String baseUrl = config.getBaseUrl();
+        Map<PackId, PackageMetadata> listed = GraniteClientExecutor.listMetadata(config);
+        prune(baseUrl, listed.keySet(), listener);
+
+        List<PackId> changed = new ArrayList<PackId>();
+        for (String packageFilter : packageFilters) {
+            for (PackId packId : PackageDownloadCallable.resolveFilter(packageFilter, listed.keySet())) {
+                if (!changed.contains(packId) && getFile(baseUrl, listed.get(packId)) == null) {
+                    changed.add(packId);
+                }
+            }
+        }
+        if (changed.isEmpty()) {
+            listener.getLogger().printf("Package mirror of %s is up to date.%n", baseUrl);
+            return;
+        }
+
+        File serverDirectory = getServerDirectory(baseUrl);
+        FilePath partial = new FilePath(new File(serverDirectory, PARTIAL_DIRECTORY_NAME));
+        partial.deleteRecursive();
+        partial.mkdirs();
+        try {
+            PackageDownloadCallable callable = new PackageDownloadCallable(
+                    config, listener, changed, Collections.<String>emptyList(), Collections.<PackId>emptySet(), true,
+                    RetryPolicy.NONE, MAX_PARALLEL_DOWNLOADS);
+            Result result = PackageDeploymentResult.combine(callable.invoke(new File(partial.getRemote()), null),
+                                                            changed.size());
+
+            File[] downloaded = new File(partial.getRemote()).listFiles();
+            if (downloaded != null) {
+                for (File file : downloaded) {
+                    PackId packId = identify(file);
+                    PackageMetadata metadata = packId != null ? listed.get(packId) : null;
+                    if (metadata == null) {
+                        continue;
+                    }
+
+                    // a build copying the previous file keeps reading it after the new one is renamed over it
+                    String path = getPath(packId);
+                    File target = new File(serverDirectory, path);
+                    if (!(target.getParentFile().isDirectory() || target.getParentFile().mkdirs())
+                            || !(file.renameTo(target) || (target.delete() && file.renameTo(target)))) {
+                        listener.error("Failed to move %s into the package mirror", file);
+                        continue;
+                    }
+                    getIndex().put(baseUrl, packId, new Entry(path, metadata.getSize(), metadata.getLastModified()));
+                }
+            }
+            getIndex().save();
+            listener.getLogger().printf("Synced %d new or changed packages from %s into the package mirror: %s%n",
+                                        changed.size(), baseUrl, result);
+        } finally {
+            partial.deleteRecursive();
+        }
+    }
+
+    /**
+     * Deletes the mirrored packages of the server which it no longer lists, such as old versions removed from the
+     * server. An empty listing is not trusted to mean that every package was removed.
+     */
+    private void prune(String baseUrl, Collection<PackId> listed, TaskListener listener) {
+        if (listed.isEmpty()) {
+            return;
+        }
+        List<String> removed = getIndex().prune(baseUrl, listed);
+        if (removed.isEmpty()) {
+            return;
+        }
+        File serverDirectory = getServerDirectory(baseUrl);
+        for (String path : removed) {
+            File file = new File(serverDirectory, path);
+            if (file.exists() && !file.delete()) {
+                listener.error("Failed to delete %s from the package mirror", file);
+            }
+        }
+        getIndex().save();
+        listener.getLogger().printf("Removed %d packages which are no longer on %s from the package mirror.%n",
+                                    removed.size(), baseUrl);
+    }
+
+    private static PackId identify(File file) {
+        try {
+            return PackId.identifyPackage(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the mirror directory, or null when Jenkins is not running
+     */
+    static File getDirectory() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new File(jenkins.getRootDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * @return the directory which the packages from the server are mirrored into, or null when Jenkins is not running
+     */
+    static File getServerDirectory(String baseUrl) {
+        File directory = getDirectory();
+        if (directory == null) {
+            return null;
+        }
+        String name = HostCircuitBreaker.normalize(baseUrl).replaceFirst("^[a-z]+://", "")
+                .replaceAll("[^a-z0-9.-]+", "_");
+        return new File(directory, name);
+    }
+
+    /**
+     * @return the path of the package file in the directory of its server, which follows the installation path so
+     * that packages of the same name and version in different groups do not overwrite each other
+     */
+    private static String getPath(PackId packId) {
+        String path = packId.getInstallationPath();
+        return path.startsWith(PACKAGES_PATH) ? path.substring(PACKAGES_PATH.length()) : path.replaceFirst("^/+", "");
+    }
+
+    /**
+     * @return the first of the base URLs which is configured as a mirror server, or null if none is
+     */
+    static String getMirroredBaseUrl(Collection<String> baseUrls) {
+        List<String> mirrored = new ArrayList<String>();
+        for (String mirrorBaseUrl : parseLines(GraniteAHCFactory.getFactoryInstance().getMirrorBaseUrls())) {
+            mirrored.add(HostCircuitBreaker.normalize(mirrorBaseUrl));
+        }
+        for (String baseUrl : baseUrls) {
+            if (mirrored.contains(HostCircuitBreaker.normalize(baseUrl))) {
+                return baseUrl;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param metadata the package as currently listed by the server
+     * @return the mirrored file of the package from the server, or null if the package is not in the mirror with the
+     * same size and last modified time
+     */
+    static File getFile(String baseUrl, PackageMetadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        Entry entry = getIndex().get(baseUrl, metadata.getPackId());
+        if (entry == null || !metadata.isSameAs(entry.size, entry.lastModified)) {
+            return null;
+        }
+        File serverDirectory = getServerDirectory(baseUrl);
+        File file = serverDirectory != null ? new File(serverDirectory, entry.path) : null;
+        return file != null && file.isFile() ? file : null;
+    }
+
+    private static synchronized Index getIndex() {
+        if (index == null) {
+            index = new Index();
+            XmlFile file = getIndexFile();
+            if (file != null && file.exists()) {
+                try {
+                    file.unmarshal(index);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load package mirror index", e);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static XmlFile getIndexFile() {
+        File directory = getDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return new XmlFile(new File(directory, INDEX_FILE_NAME));
+    }
+
+    private static List<String> parseLines(String value) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : value.split("(\\r)?\\n")) {
+            if (line.trim().length() > 0) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The mirrored packages of each server, by normalized base URL and package ID
+     */
+    static final class Index {
+        private final HashMap<String, HashMap<String, Entry>> servers = new HashMap<String, HashMap<String, Entry>>();
+
+        synchronized Entry get(String baseUrl, PackId packId) {
+            HashMap<String, Entry> entries = servers.get(HostCircuitBreaker.normalize(baseUrl));
+            return entries != null ? entries.get(packId.toString()) : null;
+        }
+
+        synchronized void put(String baseUrl, PackId packId, Entry entry) {
+            String key = HostCircuitBreaker.normalize(baseUrl);
+            HashMap<String, Entry> entries = servers.get(key);
+            if (entries == null) {
+                entries = new HashMap<String, Entry>();
+                servers.put(key, entries);
+            }
+            entries.put(packId.toString(), entry);
+        }
+
+        /**
+         * Removes the entries of the server whose packages are not listed
+         *
+         * @return the paths of the removed entries
+         */
+        synchronized List<String> prune(String baseUrl, Collection<PackId> listed) {
+            List<String> removed = new ArrayList<String>();
+            HashMap<String, Entry> entries = servers.get(HostCircuitBreaker.normalize(baseUrl));
+            if (entries == null) {
+                return removed;
+            }
+            Set<String> keep = new HashSet<String>();
+            for (PackId packId : listed) {
+                keep.add(packId.toString());
+            }
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> entry = it.next();
+                if (!keep.contains(entry.getKey())) {
+                    removed.add(entry.getValue().path);
+                    it.remove();
+                }
+            }
+            return removed;
+        }
+
+        synchronized void save() {
+            XmlFile file = getIndexFile();
+            if (file != null) {
+                try {
+                    file.write(this);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save package mirror index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A mirrored package file, with the size and last modified time the server listed when it was downloaded
+     */
+    static final class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Api;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.Result;
+import net.adamcin.granite.client.packman.PackId;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Build action which records the result of each package deployed or downloaded by the build, per server. The results
+ * are shown on the build page, exported through the remote API at {@code crxPackages/api}, and summarized in the
+ * environment variables CRX_DEPLOY_RESULT, CRX_DOWNLOAD_RESULT and CRX_FAILED_HOSTS for later build steps.
+ */
+@ExportedBean
+public class PackageResultsAction implements EnvironmentContributingAction {
+
+    public static final String DEPLOY = "deploy";
+    public static final String DOWNLOAD = "download";
+
+    private final List<HostResult> hostResults = new ArrayList<HostResult>();
+
+    /**
+     * server, package and digest of each package deployed successfully, which later builds can resume from
+     */
+    private Set<String> checkpoints;
+
+    /**
+     * @return the action of the build, which is added to the build if it does not have one yet
+     */
+    static synchronized PackageResultsAction forBuild(AbstractBuild<?, ?> build) {
+        PackageResultsAction action = build.getAction(PackageResultsAction.class);
+        if (action == null) {
+            action = new PackageResultsAction();
+            build.addAction(action);
+        }
+        return action;
+    }
+
+    synchronized void add(String operation, String baseUrl, List<PackageDeploymentResult> packages, Result result) {
+        hostResults.add(new HostResult(operation, baseUrl, packages, result));
+    }
+
+    synchronized void addCheckpoint(String baseUrl, PackId packId, String digest) {
+        if (checkpoints == null) {
+            checkpoints = new HashSet<String>();
+        }
+        checkpoints.add(getCheckpointKey(baseUrl, packId, digest));
+    }
+
+    /**
+     * @return true if this build deployed the identical package file to the server successfully
+     */
+    synchronized boolean hasCheckpoint(String baseUrl, PackId packId, String digest) {
+        return checkpoints != null && checkpoints.contains(getCheckpointKey(baseUrl, packId, digest));
+    }
+
+    /**
+     * Saves the build while holding this action's lock, so that results added by other threads cannot modify the
+     * action while it is written.
+     */
+    synchronized void saveBuild(AbstractBuild<?, ?> build) throws IOException {
+        build.save();
+    }
+
+    private static String getCheckpointKey(String baseUrl, PackId packId, String digest) {
+        return baseUrl + " " + packId + " " + digest;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "CRX Content Packages";
+    }
+
+    public String getUrlName() {
+        return "crxPackages";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Exported(inline = true)
+    public synchronized List<HostResult> getHostResults() {
+        return new ArrayList<HostResult>(hostResults);
+    }
+
+    /**
+     * @return the worst result of the operation across all servers, or null if the build did not perform it
+     */
+    public synchronized Result getResult(String operation) {
+        Result combined = null;
+        for (HostResult hostResult : hostResults) {
+            if (hostResult.getOperation().equals(operation)) {
+                combined = combined == null ? hostResult.getResult() : combined.combine(hostResult.getResult());
+            }
+        }
+        return combined;
+    }
+
+    public synchronized void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        Result deployResult = getResult(DEPLOY);
+        if (deployResult != null) {
+            env.put("CRX_DEPLOY_RESULT", deployResult.toString());
+        }
+        Result downloadResult = getResult(DOWNLOAD);
+        if (downloadResult != null) {
+            env.put("CRX_DOWNLOAD_RESULT", downloadResult.toString());
+        }
+
+        Set<String> failedHosts = new LinkedHashSet<String>();
+        for (HostResult hostResult : hostResults) {
+            if (!hostResult.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                failedHosts.add(hostResult.getBaseUrl());
+            }
+        }
+        env.put("CRX_FAILED_HOSTS", Util.join(failedHosts, ","));
+    }
+
+    /**
+     * Results of a single deploy or download operation against a single server
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class HostResult {
+        private final String operation;
+        private final String baseUrl;
+        private final List<PackageDeploymentResult> packages;
+        private final Result result;
+
+        private HostResult(String operation, String baseUrl, List<PackageDeploymentResult> packages, Result result) {
+            this.operation = operation;
+            this.baseUrl = baseUrl;
+            this.packages = packages != null ? new ArrayList<PackageDeploymentResult>(packages)
+                    : new ArrayList<PackageDeploymentResult>();
+            this.result = result;
+        }
+
+        @Exported
+        public String getOperation() {
+            return operation;
+        }
+
+        @Exported
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        @Exported
+        public Result getResult() {
+            return result;
+        }
+
+        @Exported(inline = true)
+        public List<PackageDeploymentResult> getPackages() {
+            return Collections.unmodifiableList(packages);
+        }
+    }
+}
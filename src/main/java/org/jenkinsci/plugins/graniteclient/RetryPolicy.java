@@ -0,0 +1,359 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import net.adamcin.granite.client.packman.SimpleResponse;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retries individual package manager operations which fail with transient errors, using exponential backoff with
+ * jitter. Whether a failure is retried depends on the {@link Step}: operations which are safe to repeat are retried
+ * on any I/O error or timeout, while operations with server-side effects, like installs, are only retried when the
+ * error shows the request never reached the server. A response which reports that the service is unavailable, like a
+ * 503, counts as a transient error, whether the client throws it or returns it as an unsuccessful response. Retries
+ * are also drawn from a budget shared by everything that
+ * runs for the same build in the same JVM, so a server that keeps failing cannot stretch a build indefinitely.
+ */
+public final class RetryPolicy implements Serializable {
+
+    private static final long serialVersionUID = -2401635508237618924L;
+
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0L, 0, null);
+
+    private static final long MAX_DELAY_MS = 60000L;
+    private static final long BUDGET_EXPIRY_MS = 24L * 60L * 60L * 1000L;
+
+    private static final ConcurrentMap<String, Budget> BUDGETS = new ConcurrentHashMap<String, Budget>();
+
+    /**
+     * Classification of package manager operations by whether they can be repeated safely
+     */
+    public enum Step {
+        /**
+         * Reads like list and existence checks, which are always safe to repeat
+         */
+        READ(true),
+
+        /**
+         * Uploads which overwrite an existing package, so a repeat converges on the same state
+         */
+        UPLOAD_OVERWRITE(true),
+
+        /**
+         * Uploads which fail if the package exists, which a partially processed first attempt may have created
+         */
+        UPLOAD(false),
+
+        /**
+         * Installs and uninstalls, which must not be repeated once the server may have started on them
+         */
+        INSTALL(false),
+
+        /**
+         * Deletes, which leave the package absent no matter how often they are repeated
+         */
+        DELETE(true),
+
+        /**
+         * Downloads, which overwrite the local file on each attempt
+         */
+        DOWNLOAD(true);
+
+        private final boolean idempotent;
+
+        Step(boolean idempotent) {
+            this.idempotent = idempotent;
+        }
+
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+    }
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final int budget;
+    private final String budgetKey;
+
+    /**
+     * @param maxRetries maximum number of retries of a single operation, or 0 to disable retries
+     * @param baseDelay  delay in milliseconds before the first retry, doubling for each subsequent retry
+     * @param budget     maximum number of retries across all operations sharing the same budgetKey, or 0 for no limit
+     * @param budgetKey  identifies the build which the budget belongs to
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, int budget, String budgetKey) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelay = Math.max(0L, baseDelay);
+        this.budget = Math.max(0, budget);
+        this.budgetKey = budgetKey;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Executes the action, which is not a transfer of a known size, retrying it as allowed by this policy for the
+     * given step.
+     *
+     * @see #execute(Step, GraniteClientConfig, PackageManagerClient, long, PackageManagerClientCallable, TaskListener)
+     */
+    public <T> T execute(Step step, GraniteClientConfig config, PackageManagerClient client,
+                         PackageManagerClientCallable<T> action, TaskListener listener) throws Exception {
+        return execute(step, config, client, -1L, action, listener);
+    }
+
+    /**
+     * Executes the action, retrying it as allowed by this policy for the given step. The latency of each attempt
+     * which completes or times out is recorded for {@link AdaptiveTimeouts}, and when the config asks for automatic
+     * timeouts, the client request timeout is set from the recorded latencies of the step before each attempt. The
+     * service timeout, which bounds the wait for the package manager to become available again after an install, is
+     * left as configured, since it depends on what was installed rather than on the latency of requests.
+     *
+     * @param bytes the size of an upload or download, which scales its timeout, or -1 if it is not known or the step
+     *              is not a transfer
+     */
+    public <T> T execute(Step step, GraniteClientConfig config, PackageManagerClient client, long bytes,
+                         PackageManagerClientCallable<T> action, TaskListener listener) throws Exception {
+        return execute(step, config, client, bytes, null, action, listener);
+    }
+
+    /**
+     * Executes a transfer admitted by the {@link TransferGovernor}, which gives the budget of its ticket back while it
+     * waits to be retried.
+     *
+     * @param ticket the admission of the transfer, or null
+     * @see #execute(Step, GraniteClientConfig, PackageManagerClient, long, PackageManagerClientCallable, TaskListener)
+     */
+    <T> T execute(Step step, GraniteClientConfig config, PackageManagerClient client, long bytes,
+                  TransferGovernor.Ticket ticket, PackageManagerClientCallable<T> action, TaskListener listener)
+            throws Exception {
+        int attempt = 0;
+        while (true) {
+            if (config.isAutoTimeouts()) {
+                client.setRequestTimeout(getTimeout(step, config, bytes));
+            }
+            final long start = System.currentTimeMillis();
+            T result;
+            try {
+                result = action.doExecute(client);
+                recordLatency(step, config, bytes, System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                // an attempt which timed out took at least as long as the timeout. Leaving it out would let the
+                // timeout shrink, but never grow.
+                if (isTimeout(e)) {
+                    recordLatency(step, config, bytes, System.currentTimeMillis() - start);
+                }
+                if (attempt >= maxRetries || !isRetryable(step, e) || !consumeBudget(listener)) {
+                    throw e;
+                }
+                backoff(step, ++attempt, e.getMessage(), ticket, listener);
+                continue;
+            }
+
+            // the last unsuccessful response is returned as is once retries run out, for the caller to report
+            if (isUnavailable(result) && step.isIdempotent() && attempt < maxRetries && consumeBudget(listener)) {
+                backoff(step, ++attempt, ((SimpleResponse) result).getMessage(), ticket, listener);
+                continue;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the automatic timeout of the step. An install takes as long as the content of the package takes to
+     * import, not as long as earlier installs took, so its timeout never drops below the configured request timeout,
+     * or the global one when none is configured, however quickly small packages installed before.
+     */
+    static long getTimeout(Step step, GraniteClientConfig config, long bytes) {
+        if (bytes >= 0L) {
+            return AdaptiveTimeouts.getTransferTimeout(config.getBaseUrl(), step.name(), bytes,
+                                                       config.getRequestTimeout());
+        }
+        long timeout = AdaptiveTimeouts.getTimeout(config.getBaseUrl(), step.name(), config.getRequestTimeout());
+        if (step == Step.INSTALL) {
+            long configured = config.getRequestTimeout() > 0L ? config.getRequestTimeout()
+                    : GraniteAHCFactory.getFactoryInstance().getRequestTimeoutInMs();
+            return Math.max(timeout, configured);
+        }
+        return timeout;
+    }
+
+    private void backoff(Step step, int attempt, String reason, TransferGovernor.Ticket ticket,
+                         TaskListener listener) throws InterruptedException {
+        long delay = getDelay(attempt);
+        listener.getLogger().printf("%s failed: %s. Retrying in %d ms (retry %d of %d).%n",
+                step, reason, delay, attempt, maxRetries);
+        if (ticket != null) {
+            ticket.suspend();
+        }
+        Thread.sleep(delay);
+        if (ticket != null) {
+            ticket.resume(listener);
+        }
+    }
+
+    private static void recordLatency(Step step, GraniteClientConfig config, long bytes, long latency) {
+        if (bytes >= 0L) {
+            AdaptiveTimeouts.recordTransfer(config.getBaseUrl(), step.name(), latency, bytes);
+        } else {
+            AdaptiveTimeouts.record(config.getBaseUrl(), step.name(), latency);
+        }
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the exponential delay is fixed and the other half is random,
+     * which spreads out retries from concurrent builds without ever retrying immediately.
+     */
+    long getDelay(int attempt) {
+        long exponential = baseDelay << Math.min(attempt - 1, 16);
+        long capped = Math.min(Math.max(exponential, 0L), MAX_DELAY_MS);
+        return capped / 2L + (long) (Math.random() * (capped / 2L + 1L));
+    }
+
+    static boolean isRetryable(Step step, Throwable error) {
+        if (step.isIdempotent()) {
+            return isTransient(error);
+        } else {
+            return isConnectFailure(error);
+        }
+    }
+
+    /**
+     * @return true if the result is an unsuccessful response reporting that the service is temporarily unavailable
+     */
+    static boolean isUnavailable(Object result) {
+        return result instanceof SimpleResponse
+                && isUnavailable(((SimpleResponse) result).isSuccess(), ((SimpleResponse) result).getMessage());
+    }
+
+    static boolean isUnavailable(boolean success, String message) {
+        return !success && message != null
+                && (message.contains("503") || message.toLowerCase().contains("unavailable"));
+    }
+
+    static boolean isTransient(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof IOException || t instanceof TimeoutException || t instanceof UnresolvedAddressException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the error shows that a connection to the server could not be established, which means the
+     * request cannot have had any effect
+     */
+    static boolean isConnectFailure(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof UnknownHostException
+                    || t instanceof NoRouteToHostException || t instanceof UnresolvedAddressException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the error shows that the request or response did not complete within the timeout
+     */
+    static boolean isTimeout(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof TimeoutException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private boolean consumeBudget(TaskListener listener) {
+        if (budget <= 0 || budgetKey == null) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Budget> entry : BUDGETS.entrySet()) {
+            if (now - entry.getValue().lastUsed > BUDGET_EXPIRY_MS) {
+                BUDGETS.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        Budget created = new Budget(budget);
+        Budget existing = BUDGETS.putIfAbsent(budgetKey, created);
+        if (!(existing != null ? existing : created).consume(now)) {
+            listener.getLogger().printf("Retry budget for this build is exhausted.%n");
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Budget {
+        private int remaining;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Budget(int remaining) {
+            this.remaining = remaining;
+        }
+
+        synchronized boolean consume(long now) {
+            lastUsed = now;
+            if (remaining > 0) {
+                remaining--;
+                return true;
+            }
+            return false;
+        }
+    }
+}
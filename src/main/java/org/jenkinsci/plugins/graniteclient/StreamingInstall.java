@@ -0,0 +1,231 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.Response;
+import net.adamcin.granite.client.packman.DetailedResponse;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.ResponseProgressListener;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs a package through the HTML package manager service and reports the installation log to the
+ * {@link ResponseProgressListener} line by line as the server writes it. The package manager client reads the whole
+ * response before parsing it, so an error threshold enforced through its listener only takes effect once the server
+ * has finished. Here, an {@link JenkinsResponseProgressListener.ErrorThresholdExceededException} thrown by the
+ * listener aborts the request as soon as the offending line arrives.
+ */
+final class StreamingInstall {
+
+    private static final String SERVICE_PATH = "/crx/packmgr/service/script.html";
+
+    private static final Pattern TITLE = Pattern.compile("<title>(.*?)</title>");
+    private static final Pattern PROGRESS =
+            Pattern.compile("<span class=\"([^\"]*)\"><b>([^<]*)</b>&nbsp;(.*?)(?: \\((.*)\\))?</span>");
+    private static final Pattern RESULT = Pattern.compile("<textarea>(.*?)</textarea>");
+    private static final Pattern TAGS = Pattern.compile("<[^>]*>");
+
+    /**
+     * The outcome of an installation, whether it was reported by the server or the package manager client
+     */
+    static final class Outcome {
+        private final boolean success;
+        private final boolean errors;
+        private final String message;
+
+        Outcome(boolean success, boolean errors, String message) {
+            this.success = success;
+            this.errors = errors;
+            this.message = message;
+        }
+
+        static Outcome of(DetailedResponse response) {
+            return new Outcome(response.isSuccess(), response.hasErrors(), response.getMessage());
+        }
+
+        boolean isSuccess() {
+            return success;
+        }
+
+        boolean hasErrors() {
+            return errors;
+        }
+
+        String getMessage() {
+            return message;
+        }
+    }
+
+    private StreamingInstall() {
+    }
+
+    /**
+     * @param timeout request timeout in milliseconds, or 0 to wait indefinitely
+     */
+    static Outcome install(GraniteClientConfig config, PackId packId, PackageInstallOptions options, long timeout,
+                           ResponseProgressListener listener) throws IOException, InterruptedException {
+        final String url = config.getBaseUrl().replaceAll("/+$", "") + SERVICE_PATH + packId.getInstallationPath();
+        final AsyncHttpClient ahcClient = GraniteAHCFactory.getFactoryInstance().newInstance();
+        try {
+            AsyncHttpClient.BoundRequestBuilder request = ahcClient.preparePost(url)
+                    .addParameter("cmd", "install")
+                    .addParameter("recursive", Boolean.toString(options.isRecursive()))
+                    .addParameter("autosave", Integer.toString(options.getAutosave()))
+                    .addParameter("acHandling", options.getAcHandling().name().toLowerCase());
+            Future<Outcome> fResponse =
+                    GraniteClientExecutor.executeAuthenticated(ahcClient, config, request, new Handler(listener));
+            return timeout > 0L ? fResponse.get(timeout, TimeUnit.MILLISECONDS) : fResponse.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to install " + packId + " on " + config.getBaseUrl(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out installing " + packId + " on " + config.getBaseUrl(), e);
+        } finally {
+            ahcClient.closeAsynchronously();
+        }
+    }
+
+    /**
+     * Splits the response body into lines as it arrives, without buffering the rest of it
+     */
+    private static final class Handler extends AsyncCompletionHandler<Outcome> {
+        private final ResponseProgressListener listener;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private int statusCode;
+        private String statusText;
+        private boolean aborted = false;
+        private boolean errors = false;
+        private Boolean success = null;
+        private String message = null;
+
+        private Handler(ResponseProgressListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus status) throws Exception {
+            statusCode = status.getStatusCode();
+            statusText = status.getStatusText();
+            return super.onStatusReceived(status);
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart content) throws Exception {
+            if (statusCode != 200) {
+                return AsyncHandler.STATE.CONTINUE;
+            }
+            try {
+                for (byte b : content.getBodyPartBytes()) {
+                    if (b == '\n') {
+                        readLine();
+                    } else {
+                        line.write(b);
+                    }
+                }
+            } catch (JenkinsResponseProgressListener.ErrorThresholdExceededException e) {
+                aborted = true;
+                return AsyncHandler.STATE.ABORT;
+            }
+            return AsyncHandler.STATE.CONTINUE;
+        }
+
+        @Override
+        public Outcome onCompleted(Response response) throws Exception {
+            if (statusCode != 200) {
+                throw new IOException("Failed to install package: " + statusCode + " " + statusText);
+            }
+            if (aborted) {
+                return new Outcome(false, true, "Installation aborted");
+            }
+            if (line.size() > 0) {
+                readLine();
+            }
+            if (success == null) {
+                throw new IOException("The server did not report the result of the installation");
+            }
+            return new Outcome(success, errors, message);
+        }
+
+        private void readLine() throws IOException {
+            String text = line.toString("UTF-8").trim();
+            line.reset();
+            if (text.isEmpty()) {
+                return;
+            }
+
+            Matcher title = TITLE.matcher(text);
+            Matcher progress = PROGRESS.matcher(text);
+            Matcher result = RESULT.matcher(text);
+            if (title.find()) {
+                listener.onStart(unescape(title.group(1)));
+            } else if (progress.find()) {
+                String action = progress.group(2);
+                String path = unescape(progress.group(3));
+                if ("E".equals(action)) {
+                    errors = true;
+                    listener.onError(path, progress.group(4) != null ? unescape(progress.group(4)) : "");
+                } else {
+                    listener.onProgress(action, path);
+                }
+            } else if (result.find()) {
+                JSONObject json = JSONObject.fromObject(result.group(1));
+                success = json.optBoolean("success", false);
+                message = json.optString("msg", "");
+            } else {
+                String log = unescape(TAGS.matcher(text).replaceAll("")).trim();
+                if (!log.isEmpty()) {
+                    if (log.contains("with errors")) {
+                        errors = true;
+                    }
+                    listener.onLog(log);
+                }
+            }
+        }
+    }
+
+    private static String unescape(String html) {
+        return html.replace("&nbsp;", " ").replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&quot;", "\"").replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.TaskListener;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admits package uploads and downloads on the node where they run, so that the total size of transfers in flight
+ * stays within a byte budget, and optionally spaces out the starts of transfers to each server at an average rate.
+ * Transfers are weighed by size rather than counted, and admission is not first-come, first-served, so small packages
+ * can still proceed while a large package waits for enough of the budget to be free. A transfer gives its share of the
+ * budget back while it waits to be retried. Pacing only delays the start of a transfer. The transfer itself runs at
+ * the full speed of the client, which reads and writes the package files itself.
+ */
+final class TransferGovernor {
+
+    private static final long KB = 1024L;
+
+    /**
+     * Assumed size of a download whose size has not been seen before on this node, for pacing and the budget
+     */
+    private static final long DEFAULT_DOWNLOAD_ESTIMATE = 64L * KB * KB;
+
+    private static final ConcurrentMap<String, TokenBucket> BUCKETS = new ConcurrentHashMap<String, TokenBucket>();
+    private static final ConcurrentMap<String, Long> DOWNLOAD_SIZES = new ConcurrentHashMap<String, Long>();
+    private static volatile Budget budget;
+
+    private TransferGovernor() {
+    }
+
+    /**
+     * Waits until an upload of the given size may start.
+     */
+    static Ticket admitUpload(GraniteClientConfig config, long bytes, TaskListener listener)
+            throws InterruptedException {
+        return admit(config, bytes, listener);
+    }
+
+    /**
+     * Waits until a download of the package may start. The size of a download is not known until it completes, so the
+     * size of the last download of the same package from the same server is assumed, if there was one. Otherwise a
+     * fixed estimate is assumed, so that a first download neither takes the whole budget nor waits for all other
+     * transfers to complete. A download larger than its estimate may exceed the budget, once.
+     */
+    static Ticket admitDownload(GraniteClientConfig config, PackId packId, TaskListener listener)
+            throws InterruptedException {
+        Ticket ticket = admit(config, getDownloadSize(config, packId), listener);
+        ticket.downloadKey = getDownloadKey(config, packId);
+        return ticket;
+    }
+
+    /**
+     * @return the size of the last download of the package from the server on this node, or -1 if there was none
+     */
+    static long getDownloadSize(GraniteClientConfig config, PackId packId) {
+        Long lastSize = DOWNLOAD_SIZES.get(getDownloadKey(config, packId));
+        return lastSize != null ? lastSize : -1L;
+    }
+
+    private static String getDownloadKey(GraniteClientConfig config, PackId packId) {
+        return HostCircuitBreaker.normalize(config.getBaseUrl()) + "|" + packId.getInstallationPath();
+    }
+
+    /**
+     * @param bytes the size of the transfer, or a negative value if it is not known
+     */
+    private static Ticket admit(GraniteClientConfig config, long bytes, TaskListener listener)
+            throws InterruptedException {
+        final long estimate = bytes >= 0L ? bytes : DEFAULT_DOWNLOAD_ESTIMATE;
+        TokenBucket bucket = null;
+        if (config.getHostBandwidthLimit() > 0L) {
+            bucket = getBucket(config.getBaseUrl(), config.getHostBandwidthLimit());
+            long delay = bucket.reserve(estimate);
+            if (delay > 0L) {
+                listener.getLogger().printf("Pacing transfer to %s for %d ms to average %d KB/s.%n",
+                                            config.getBaseUrl(), delay, config.getHostBandwidthLimit() / KB);
+                Thread.sleep(delay);
+            }
+        }
+
+        Budget _budget = null;
+        int permits = 0;
+        if (config.getTransferBudget() > 0L) {
+            _budget = getBudget(config.getTransferBudget());
+            permits = _budget.getPermits(estimate);
+            _budget.acquire(permits, listener);
+        }
+
+        return new Ticket(estimate, bucket, _budget, permits);
+    }
+
+    /**
+     * @return the number of bytes of the transfer budget which are not taken by transfers in flight on this node, or
+     * -1 if there is no budget
+     */
+    static long getAvailableBudget() {
+        Budget _budget = budget;
+        return _budget != null ? _budget.semaphore.availablePermits() * KB : -1L;
+    }
+
+    private static TokenBucket getBucket(String baseUrl, long bytesPerSecond) {
+        final String key = HostCircuitBreaker.normalize(baseUrl);
+        while (true) {
+            TokenBucket existing = BUCKETS.get(key);
+            if (existing != null && existing.rate == bytesPerSecond) {
+                return existing;
+            }
+            TokenBucket created = new TokenBucket(bytesPerSecond);
+            if (existing == null) {
+                if (BUCKETS.putIfAbsent(key, created) == null) {
+                    return created;
+                }
+            } else if (BUCKETS.replace(key, existing, created)) {
+                return created;
+            }
+        }
+    }
+
+    private static synchronized Budget getBudget(long totalBytes) {
+        // transfers admitted before the budget was reconfigured return their permits to the old budget
+        if (budget == null || budget.totalBytes != totalBytes) {
+            budget = new Budget(totalBytes);
+        }
+        return budget;
+    }
+
+    /**
+     * Admission of a single transfer, which must be completed when the transfer ends, successfully or not
+     */
+    static final class Ticket {
+        private final long estimate;
+        private final TokenBucket bucket;
+        private final Budget budget;
+        private final int permits;
+        private String downloadKey;
+        private boolean completed;
+        private boolean suspended;
+
+        private Ticket(long estimate, TokenBucket bucket, Budget budget, int permits) {
+            this.estimate = estimate;
+            this.bucket = bucket;
+            this.budget = budget;
+            this.permits = permits;
+        }
+
+        /**
+         * Gives the budget taken by the transfer back while it waits to be retried, so that other transfers can use
+         * it in the meantime.
+         */
+        synchronized void suspend() {
+            if (budget != null && !completed && !suspended) {
+                suspended = true;
+                budget.semaphore.release(permits);
+            }
+        }
+
+        /**
+         * Waits to take the budget of the transfer again before it is retried.
+         */
+        void resume(TaskListener listener) throws InterruptedException {
+            synchronized (this) {
+                if (!suspended) {
+                    return;
+                }
+            }
+            budget.acquire(permits, listener);
+            synchronized (this) {
+                suspended = false;
+            }
+        }
+
+        /**
+         * @param actualBytes the number of bytes actually transferred, or a negative value if unknown
+         */
+        synchronized void complete(long actualBytes) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+
+            if (actualBytes >= 0L) {
+                if (bucket != null) {
+                    bucket.adjust(actualBytes - estimate);
+                }
+                if (downloadKey != null) {
+                    DOWNLOAD_SIZES.put(downloadKey, actualBytes);
+                }
+            }
+            if (budget != null && !suspended) {
+                budget.semaphore.release(permits);
+            }
+        }
+    }
+
+    private static final class Budget {
+        private final long totalBytes;
+        private final int totalPermits;
+        private final Semaphore semaphore;
+
+        private Budget(long totalBytes) {
+            this.totalBytes = totalBytes;
+            this.totalPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, totalBytes / KB));
+            this.semaphore = new Semaphore(totalPermits, false);
+        }
+
+        private void acquire(int permits, TaskListener listener) throws InterruptedException {
+            if (!semaphore.tryAcquire(permits)) {
+                listener.getLogger().printf("Waiting for %d MB of transfers in flight on this node to complete...%n",
+                                            totalBytes / (KB * KB));
+                final long start = System.currentTimeMillis();
+                semaphore.acquire(permits);
+                listener.getLogger().printf("Waited %d ms for transfer budget.%n", System.currentTimeMillis() - start);
+            }
+        }
+
+        /**
+         * A transfer larger than the whole budget takes all of it, so that it runs alone rather than never.
+         */
+        private int getPermits(long bytes) {
+            return (int) Math.min(totalPermits, Math.max(1L, (bytes + KB - 1L) / KB));
+        }
+    }
+
+    /**
+     * Token bucket which allows its balance to go negative, so that a transfer reserves its full size up front and
+     * the next transfer waits until the debt has been paid off at the configured rate. One second of transfer is
+     * allowed to accumulate for bursts.
+     */
+    private static final class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+
+        private TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        synchronized long reserve(long bytes) {
+            refill();
+            long delay = tokens < 0.0D ? (long) Math.ceil(-tokens * 1000.0D / rate) : 0L;
+            tokens -= bytes;
+            return delay;
+        }
+
+        synchronized void adjust(long bytes) {
+            refill();
+            tokens -= bytes;
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / 1000.0D);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.ning.http.client.AsyncHttpClient;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveTimeoutsTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConfiguredUntilEnoughSamples() {
+        String baseUrl = "http://few-samples.example.com";
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES - 1; i++) {
+            AdaptiveTimeouts.record(baseUrl, "READ", 100000L);
+        }
+        assertEquals(1234L, AdaptiveTimeouts.getTimeout(baseUrl, "READ", 1234L));
+        AdaptiveTimeouts.record(baseUrl, "READ", 100000L);
+        assertEquals(300000L, AdaptiveTimeouts.getTimeout(baseUrl, "READ", 1234L));
+    }
+
+    @Test
+    public void testTimeoutsAreBounded() {
+        String baseUrl = "http://bounds.example.com";
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+            AdaptiveTimeouts.record(baseUrl, "FAST", 1L);
+            AdaptiveTimeouts.record(baseUrl, "SLOW", AdaptiveTimeouts.CEILING_MS);
+        }
+        assertEquals(AdaptiveTimeouts.FLOOR_MS, AdaptiveTimeouts.getTimeout(baseUrl, "FAST", 0L));
+        assertEquals(AdaptiveTimeouts.CEILING_MS, AdaptiveTimeouts.getTimeout(baseUrl, "SLOW", 0L));
+    }
+
+    @Test
+    public void testTransferTimeoutsScaleWithSize() {
+        String baseUrl = "http://transfers.example.com";
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+            AdaptiveTimeouts.recordTransfer(baseUrl, "UPLOAD", 50000L, 10L * MB);
+        }
+        assertEquals(-1L, AdaptiveTimeouts.getTransferTimeout(baseUrl, "UPLOAD", -1L, -1L));
+        assertEquals(15000L, AdaptiveTimeouts.getTransferTimeout(baseUrl, "UPLOAD", MB / 2L, -1L));
+        assertEquals(150000L, AdaptiveTimeouts.getTransferTimeout(baseUrl, "UPLOAD", 10L * MB, -1L));
+        assertEquals(AdaptiveTimeouts.CEILING_MS,
+                     AdaptiveTimeouts.getTransferTimeout(baseUrl, "UPLOAD", 1024L * 1024L * MB, -1L));
+    }
+
+    @Test
+    public void testInstallTimeoutStaysAboveConfigured() {
+        String baseUrl = "http://small-installs.example.com";
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+            AdaptiveTimeouts.record(baseUrl, RetryPolicy.Step.INSTALL.name(), 100L);
+            AdaptiveTimeouts.record(baseUrl, RetryPolicy.Step.READ.name(), 100L);
+        }
+        GraniteClientConfig config = new GraniteClientConfig(baseUrl, null, 120000L, 0L, true);
+        assertEquals(120000L, RetryPolicy.getTimeout(RetryPolicy.Step.INSTALL, config, -1L));
+        assertEquals(AdaptiveTimeouts.FLOOR_MS, RetryPolicy.getTimeout(RetryPolicy.Step.READ, config, -1L));
+
+        GraniteClientConfig unconfigured = new GraniteClientConfig(baseUrl, null, 0L, 0L, true);
+        assertEquals(Math.max(AdaptiveTimeouts.FLOOR_MS,
+                              GraniteAHCFactory.getFactoryInstance().getRequestTimeoutInMs()),
+                     RetryPolicy.getTimeout(RetryPolicy.Step.INSTALL, unconfigured, -1L));
+    }
+
+    @Test
+    public void testStubServerLatenciesStayAboveFloor() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        AsyncHttpClient ahcClient = GraniteAHCFactory.getFactoryInstance().newInstance();
+        try {
+            AsyncPackageManagerClient client = new AsyncPackageManagerClient(ahcClient);
+            client.setBaseUrl(server.getBaseUrl());
+            GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L, true);
+            for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+                RetryPolicy.NONE.execute(RetryPolicy.Step.READ, config, client,
+                        new PackageManagerClientCallable<Boolean>() {
+                            public Boolean doExecute(PackageManagerClient client) throws Exception {
+                                return client.existsOnServer(PackId.createPackId("test", "missing", "1.0"));
+                            }
+                        }, new StreamTaskListener(System.out));
+            }
+            assertEquals(AdaptiveTimeouts.FLOOR_MS,
+                         AdaptiveTimeouts.getTimeout(server.getBaseUrl(), RetryPolicy.Step.READ.name(), 1L));
+        } finally {
+            ahcClient.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Repeatable end-to-end throughput benchmark which drives {@link PackageDeploymentCallable} and
+ * {@link PackageDownloadCallable} against a set of {@link StubPackageManagerServer} instances, using N synthetic
+ * packages with sizes drawn log-uniformly between a minimum and a maximum. Every scenario is run once per requested
+ * host concurrency, optionally after an unmeasured warm-up pass so that cold and warm (cached) runs can be compared,
+ * and one JSON object per scenario is written to the output for comparison between plugin versions.
+ * <p/>
+ * The peak heap usage of each scenario is reported as well. Transfers which buffer whole packages in memory are
+ * caught by {@link LargePackageTransferTest} instead, which runs with the tests.
+ * <p/>
+ * Options are passed as {@code --name=value}: packages, hosts, minSizeKb, maxSizeKb, concurrency (comma-separated),
+ * warmup (true|false), latencyMs, installTimeMs, installLogLines, bytesPerSecond, seed, label, workDir, out.
+ */
+public final class DeploymentBenchmark {
+
+    private final Map<String, String> options;
+    private final File workDir;
+    private final List<StubPackageManagerServer> servers = new ArrayList<StubPackageManagerServer>();
+    private final List<File> packageFiles = new ArrayList<File>();
+    private final List<PackId> packIds = new ArrayList<PackId>();
+    private long totalBytes = 0L;
+
+    private DeploymentBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.workDir = new File(option("workDir", new File(System.getProperty("java.io.tmpdir"),
+                "crx-benchmark-" + System.currentTimeMillis()).getPath()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+        }
+
+        DeploymentBenchmark benchmark = new DeploymentBenchmark(options);
+        String out = options.get("out");
+        PrintStream results = out != null ? new PrintStream(new FileOutputStream(out, true), true, "UTF-8")
+                : System.out;
+        try {
+            benchmark.run(results);
+        } finally {
+            if (results != System.out) {
+                results.close();
+            }
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private long longOption(String name, long defaultValue) {
+        return Long.parseLong(option(name, String.valueOf(defaultValue)));
+    }
+
+    private void run(PrintStream results) throws Exception {
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("Failed to create work directory " + workDir);
+        }
+
+        generatePackages(intOption("packages", 10), longOption("minSizeKb", 64L) * 1024L,
+                longOption("maxSizeKb", 4096L) * 1024L, new Random(longOption("seed", 42L)));
+
+        int hosts = intOption("hosts", 2);
+        for (int i = 0; i < hosts; i++) {
+            servers.add(new StubPackageManagerServer(new File(workDir, "server" + i))
+                    .setLatencyInMs(longOption("latencyMs", 0L))
+                    .setInstallTimeInMs(longOption("installTimeMs", 0L))
+                    .setInstallLogLines(intOption("installLogLines", 10))
+                    .setBytesPerSecond(longOption("bytesPerSecond", 0L))
+                    .start());
+        }
+
+        OutputStream buildLog = new FileOutputStream(new File(workDir, "build.log"));
+        try {
+            TaskListener listener = new StreamTaskListener(buildLog);
+            if (Boolean.parseBoolean(option("warmup", "true"))) {
+                deploy(listener, 1);
+                download(listener, 1);
+            }
+
+            for (String concurrency : option("concurrency", "1," + hosts).split(",")) {
+                int parallel = Integer.parseInt(concurrency.trim());
+                Run deployRun = deploy(listener, parallel);
+                results.println(report("deploy", parallel, deployRun));
+                Run downloadRun = download(listener, parallel);
+                results.println(report("download", parallel, downloadRun));
+            }
+        } finally {
+            buildLog.close();
+            for (StubPackageManagerServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    private void generatePackages(int count, long minSize, long maxSize, Random random) throws IOException {
+        File dir = new File(workDir, "packages");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create package directory " + dir);
+        }
+
+        double logMin = Math.log(Math.max(minSize, 1L));
+        double logMax = Math.log(Math.max(maxSize, minSize));
+        for (int i = 0; i < count; i++) {
+            long size = (long) Math.exp(logMin + (logMax - logMin) * random.nextDouble());
+            File file = new File(dir, "benchmark-" + i + "-1.0.zip");
+            writePackage(file, "benchmark", "benchmark-" + i, "1.0", size, random);
+            PackId packId = PackId.identifyPackage(file);
+            if (packId == null) {
+                throw new IOException("Failed to identify generated package " + file);
+            }
+            packageFiles.add(file);
+            packIds.add(packId);
+            totalBytes += file.length();
+        }
+    }
+
+    static void writePackage(File file, String group, String name, String version, long payloadSize, Random random)
+            throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zip.putNextEntry(new ZipEntry("META-INF/vault/properties.xml"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+                    + "<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
+                    + "<properties>\n"
+                    + "<entry key=\"group\">" + group + "</entry>\n"
+                    + "<entry key=\"name\">" + name + "</entry>\n"
+                    + "<entry key=\"version\">" + version + "</entry>\n"
+                    + "</properties>\n").getBytes("UTF-8"));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("META-INF/vault/filter.xml"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<workspaceFilter version=\"1.0\">\n"
+                    + "<filter root=\"/content/" + name + "\"/>\n</workspaceFilter>\n").getBytes("UTF-8"));
+            zip.closeEntry();
+
+            // stored with random content so that the file size tracks the requested payload size. the payload is
+            // generated twice from the same seed, once for the CRC that STORED entries need up front
+            final long seed = random.nextLong();
+            byte[] chunk = new byte[64 * 1024];
+            CRC32 crc = new CRC32();
+            Random payload = new Random(seed);
+            long remaining = payloadSize;
+            while (remaining > 0L) {
+                int len = (int) Math.min(chunk.length, remaining);
+                payload.nextBytes(chunk);
+                crc.update(chunk, 0, len);
+                remaining -= len;
+            }
+
+            ZipEntry entry = new ZipEntry("jcr_root/content/" + name + "/payload.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(payloadSize);
+            entry.setCompressedSize(payloadSize);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            payload = new Random(seed);
+            remaining = payloadSize;
+            while (remaining > 0L) {
+                int len = (int) Math.min(chunk.length, remaining);
+                payload.nextBytes(chunk);
+                zip.write(chunk, 0, len);
+                remaining -= len;
+            }
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+    }
+
+    private Run deploy(final TaskListener listener, int parallel) throws Exception {
+        resetServers();
+        final PackageInstallOptions installOptions = new PackageInstallOptions(false, 1024, ACHandling.IGNORE);
+        return runOnHosts(parallel, new HostTask() {
+            public void run(StubPackageManagerServer server, Run run) throws Exception {
+                GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+                for (int i = 0; i < packIds.size(); i++) {
+                    PackageDeploymentCallable callable = new PackageDeploymentCallable(config, listener,
+                            packIds.get(i), installOptions, ExistingPackageBehavior.OVERWRITE);
+                    long started = System.currentTimeMillis();
+                    Result result = callable.invoke(packageFiles.get(i), null);
+                    run.record("client.deploy", System.currentTimeMillis() - started, result);
+                }
+            }
+        });
+    }
+
+    private Run download(final TaskListener listener, int parallel) throws Exception {
+        resetServers();
+        return runOnHosts(parallel, new HostTask() {
+            public void run(StubPackageManagerServer server, Run run) throws Exception {
+                for (int i = 0; i < packIds.size(); i++) {
+                    server.addPackage(packageFiles.get(i), true);
+                }
+                File target = new File(workDir, "downloads-" + server.getBaseUrl().hashCode() + "-"
+                        + System.nanoTime());
+                if (!target.mkdirs()) {
+                    throw new IOException("Failed to create download directory " + target);
+                }
+                GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+                PackageDownloadCallable callable = new PackageDownloadCallable(config, listener, packIds, false);
+                long started = System.currentTimeMillis();
+                Result result = PackageDeploymentResult.combine(callable.invoke(target, null), packIds.size());
+                run.record("client.download", System.currentTimeMillis() - started, result);
+                File[] files = target.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                target.delete();
+            }
+        });
+    }
+
+    private void resetServers() {
+        for (StubPackageManagerServer server : servers) {
+            server.resetTimings();
+        }
+    }
+
+    private interface HostTask {
+        void run(StubPackageManagerServer server, Run run) throws Exception;
+    }
+
+    private Run runOnHosts(int parallel, final HostTask task) throws Exception {
+        final Run run = new Run();
+        List<MemoryPoolMXBean> heapPools = resetHeapPeaks();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallel));
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            long started = System.currentTimeMillis();
+            for (final StubPackageManagerServer server : servers) {
+                futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        task.run(server, run);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+            run.elapsed = System.currentTimeMillis() - started;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (MemoryPoolMXBean heapPool : heapPools) {
+            run.peakHeapBytes += heapPool.getPeakUsage().getUsed();
+        }
+
+        for (StubPackageManagerServer server : servers) {
+            for (Map.Entry<String, List<Long>> entry : server.getTimings().entrySet()) {
+                for (Long sample : entry.getValue()) {
+                    run.record("server." + entry.getKey(), sample, null);
+                }
+            }
+        }
+        return run;
+    }
+
+    private static final class Run {
+        private final Map<String, List<Long>> phases = new LinkedHashMap<String, List<Long>>();
+        private int failures = 0;
+        private long elapsed = 0L;
+        private long peakHeapBytes = 0L;
+
+        synchronized void record(String phase, long millis, Result result) {
+            List<Long> samples = phases.get(phase);
+            if (samples == null) {
+                samples = new ArrayList<Long>();
+                phases.put(phase, samples);
+            }
+            samples.add(millis);
+            if (result != null && !result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                failures++;
+            }
+        }
+    }
+
+    private String report(String scenario, int parallel, Run run) {
+        int transfers = packIds.size() * servers.size();
+        long bytes = totalBytes * servers.size();
+        double seconds = Math.max(run.elapsed, 1L) / 1000.0D;
+
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"label\":\"").append(option("label", "")).append("\"");
+        json.append(",\"scenario\":\"").append(scenario).append("\"");
+        json.append(",\"concurrency\":").append(parallel);
+        json.append(",\"warmup\":").append(Boolean.parseBoolean(option("warmup", "true")));
+        json.append(",\"hosts\":").append(servers.size());
+        json.append(",\"packages\":").append(packIds.size());
+        json.append(",\"bytes\":").append(bytes);
+        json.append(",\"failures\":").append(run.failures);
+        json.append(",\"elapsedMs\":").append(run.elapsed);
+        json.append(",\"packagesPerSec\":").append(String.format("%.3f", transfers / seconds));
+        json.append(",\"mbPerSec\":").append(String.format("%.3f", bytes / (1024.0D * 1024.0D) / seconds));
+        json.append(",\"peakHeapMb\":").append(String.format("%.1f", run.peakHeapBytes / (1024.0D * 1024.0D)));
+        json.append(",\"phases\":{");
+        boolean first = true;
+        for (Map.Entry<String, List<Long>> phase : run.phases.entrySet()) {
+            List<Long> samples = new ArrayList<Long>(phase.getValue());
+            Collections.sort(samples);
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            json.append("\"").append(phase.getKey()).append("\":{")
+                    .append("\"count\":").append(samples.size())
+                    .append(",\"p50\":").append(percentile(samples, 0.50D))
+                    .append(",\"p99\":").append(percentile(samples, 0.99D))
+                    .append(",\"max\":").append(samples.isEmpty() ? 0L : samples.get(samples.size() - 1))
+                    .append("}");
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Collects garbage left over from earlier scenarios and resets the peak usage of every heap pool, so that the sum
+     * of the pool peaks afterwards is an upper bound of the heap used by the scenario.
+     */
+    private static List<MemoryPoolMXBean> resetHeapPeaks() {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        return heapPools;
+    }
+
+    static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0L;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEstimateTotalFillsFreeSlots() {
+        assertEquals(0L, DeploymentHistory.estimateTotal(Collections.<Long>emptyList(), 2));
+        assertEquals(60L, DeploymentHistory.estimateTotal(Arrays.asList(10L, 20L, 30L), 1));
+        assertEquals(30L, DeploymentHistory.estimateTotal(Arrays.asList(10L, 20L, 30L), 3));
+        assertEquals(30L, DeploymentHistory.estimateTotal(Arrays.asList(10L, 20L, 30L), 8));
+    }
+
+    @Test
+    public void testLongestFirstFinishesSooner() {
+        // the builder sorts servers longest first when deploying in parallel
+        assertEquals(130L, DeploymentHistory.estimateTotal(Arrays.asList(10L, 30L, 40L, 100L), 2));
+        assertEquals(100L, DeploymentHistory.estimateTotal(Arrays.asList(100L, 40L, 30L, 10L), 2));
+    }
+
+    @Test
+    public void testUnknownPackagesCountAsTheAverage() {
+        String baseUrl = "http://estimate.example.com:4502";
+        PackId first = PackId.createPackId("test", "first", "1.0");
+        PackId second = PackId.createPackId("test", "second", "1.0");
+        PackId unknown = PackId.createPackId("test", "unknown", "1.0");
+
+        DeploymentHistory history = DeploymentHistory.getInstance();
+        assertEquals(0L, history.estimate(baseUrl, Arrays.asList(first, second, unknown)));
+
+        history.record(baseUrl, Arrays.asList(
+                new PackageDeploymentResult(first, Result.SUCCESS, 100L, 40L, 60L),
+                new PackageDeploymentResult(second, Result.SUCCESS, 300L, 100L, 200L),
+                new PackageDeploymentResult(unknown, Result.FAILURE, 10L, 10L, -1L)));
+
+        assertEquals(-1L, history.getDuration(baseUrl, unknown));
+        assertEquals(600L, history.estimate(baseUrl, Arrays.asList(first, second, unknown)));
+    }
+
+    @Test
+    public void testNewVersionsInheritTheHistory() {
+        String baseUrl = "http://versions.example.com:4502";
+        DeploymentHistory history = DeploymentHistory.getInstance();
+        history.record(baseUrl, Collections.singletonList(
+                new PackageDeploymentResult(PackId.createPackId("test", "versions", "1.0"), Result.SUCCESS,
+                                            100L, 40L, 60L)));
+        history.record(baseUrl, Collections.singletonList(
+                new PackageDeploymentResult(PackId.createPackId("test", "versions", "1.1"), Result.SUCCESS,
+                                            200L, 140L, 60L)));
+
+        assertEquals(70L, history.getUploadDuration(baseUrl, PackId.createPackId("test", "versions", "2.0")));
+        assertEquals(60L, history.getInstallDuration(baseUrl, PackId.createPackId("test", "versions", "2.0")));
+    }
+
+    @Test
+    public void testRecordsDeploymentsToTheServer() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        try {
+            server.setInstallTimeInMs(300L);
+            File file = new File(folder.getRoot(), "history-1.0.zip");
+            DeploymentBenchmark.writePackage(file, "test", "history", "1.0", 1024L, new Random(1L));
+            PackId packId = PackId.identifyPackage(file);
+
+            GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+            PackageDeploymentResult result = new PackageDeploymentCallable(
+                    config, new StreamTaskListener(System.out), packId,
+                    new PackageInstallOptions(false, 1024, ACHandling.IGNORE), ExistingPackageBehavior.OVERWRITE)
+                    .deploy(file, null);
+            assertEquals(Result.SUCCESS, result.getResult());
+
+            DeploymentHistory history = DeploymentHistory.getInstance();
+            history.record(server.getBaseUrl(), Collections.singletonList(result));
+
+            assertTrue(history.getInstallDuration(server.getBaseUrl(), packId) >= 250L);
+            assertEquals(result.getUploadDuration() + result.getInstallDuration(),
+                         history.estimate(server.getBaseUrl(), Collections.singletonList(packId)));
+        } finally {
+            server.stop();
+        }
+    }
+}
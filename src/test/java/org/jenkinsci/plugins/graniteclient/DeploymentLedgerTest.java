@@ -0,0 +1,53 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentLedgerTest {
+
+    @Test
+    public void testServersAreKeyedByNormalizedBaseUrl() {
+        DeploymentLedger ledger = new DeploymentLedger();
+        PackId packId = PackId.parsePid("acme:site:1.0");
+        ledger.record("http://Author.example.com:4502/", packId, "abc", "deploy#1");
+
+        assertTrue(ledger.isDeployed("http://author.example.com:4502", packId, "abc"));
+        assertFalse(ledger.isDeployed("http://author.example.com:4502", packId, "def"));
+        assertFalse(ledger.isDeployed("http://publish.example.com:4503", packId, "abc"));
+
+        ledger.record("http://author.example.com:4502", PackId.parsePid("acme:site:1.1"), "def", "deploy#2");
+        assertEquals(1, ledger.getEntries().size());
+        assertEquals("acme:site:1.1", ledger.getEntries().get(0).getPackageId());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.util.FormValidation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GraniteLoginCheckerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubPackageManagerServer first;
+    private StubPackageManagerServer second;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new StubPackageManagerServer(folder.newFolder("first")).start();
+        second = new StubPackageManagerServer(folder.newFolder("second")).start();
+    }
+
+    @After
+    public void tearDown() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testLoginsRunConcurrently() throws Exception {
+        first.setLatencyInMs(1000L);
+        second.setLatencyInMs(1000L);
+
+        long start = System.currentTimeMillis();
+        GraniteLoginChecker.validate(Collections.singletonList(first.getBaseUrl()), null, 4999L, 4999L);
+        long single = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        FormValidation validation = GraniteLoginChecker.validate(
+                Arrays.asList(first.getBaseUrl(), second.getBaseUrl()), null, 5000L, 5000L);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(FormValidation.Kind.OK, validation.kind);
+        assertEquals(2, first.getLoginCount());
+        assertEquals(1, second.getLoginCount());
+        assertTrue("expected concurrent logins, took " + elapsed + "ms against " + single + "ms for one",
+                   elapsed < 2 * single);
+    }
+
+    @Test
+    public void testOutcomesAreCached() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(FormValidation.Kind.OK, GraniteLoginChecker.validate(
+                    Collections.singletonList(first.getBaseUrl()), null, 5001L, 5001L).kind);
+        }
+        assertEquals(1, first.getLoginCount());
+
+        // different timeouts are a different check
+        GraniteLoginChecker.validate(Collections.singletonList(first.getBaseUrl()), null, 5002L, 5002L);
+        assertEquals(2, first.getLoginCount());
+    }
+
+    @Test
+    public void testFailuresAreListedPerServer() throws Exception {
+        StubPackageManagerServer stopped = new StubPackageManagerServer(folder.newFolder("stopped")).start();
+        String stoppedUrl = stopped.getBaseUrl();
+        stopped.stop();
+
+        FormValidation validation = GraniteLoginChecker.validate(
+                Arrays.asList(second.getBaseUrl(), stoppedUrl), null, 1000L, 1000L);
+
+        assertEquals(FormValidation.Kind.ERROR, validation.kind);
+        assertEquals(1, second.getLoginCount());
+    }
+}
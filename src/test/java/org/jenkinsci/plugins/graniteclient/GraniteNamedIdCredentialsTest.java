@@ -0,0 +1,154 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsDescriptor;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import hudson.util.Secret;
+import net.adamcin.httpsig.api.Key;
+import net.adamcin.httpsig.ssh.jce.UserKeysFingerprintKeyId;
+import org.bouncycastle.openssl.PEMWriter;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class GraniteNamedIdCredentialsTest {
+
+    @After
+    public void tearDown() {
+        GraniteNamedIdCredentials.invalidateCaches();
+    }
+
+    @Test
+    public void testParsedKeyIsCached() throws Exception {
+        SSHUserPrivateKey creds = new TestKey("cached", "admin", generatePem());
+        Key key = GraniteNamedIdCredentials.getKeyFromCredentials(creds);
+        assertNotNull(key);
+        assertSame(key, GraniteNamedIdCredentials.getKeyFromCredentials(creds));
+        assertEquals(new UserKeysFingerprintKeyId("admin").getId(key),
+                     GraniteNamedIdCredentials.getKeyIdFromCredentials(creds).getId(key));
+    }
+
+    @Test
+    public void testChangedKeyIsParsedAgain() throws Exception {
+        Key key = GraniteNamedIdCredentials.getKeyFromCredentials(new TestKey("changed", "admin", generatePem()));
+        Key changed = GraniteNamedIdCredentials.getKeyFromCredentials(new TestKey("changed", "admin", generatePem()));
+        assertNotNull(changed);
+        assertNotSame(key, changed);
+    }
+
+    @Test
+    public void testInvalidatedKeyIsParsedAgain() throws Exception {
+        SSHUserPrivateKey creds = new TestKey("invalidated", "admin", generatePem());
+        Key key = GraniteNamedIdCredentials.getKeyFromCredentials(creds);
+        GraniteNamedIdCredentials.invalidateCaches();
+        assertNotSame(key, GraniteNamedIdCredentials.getKeyFromCredentials(creds));
+    }
+
+    @Test
+    public void testIndexKeepsTheFirstCredentialsOfEachId() {
+        SSHUserPrivateKey first = new TestKey("duplicate", "first", "");
+        SSHUserPrivateKey second = new TestKey("duplicate", "second", "");
+        SSHUserPrivateKey other = new TestKey("other", "other", "");
+
+        Map<String, Credentials> index = GraniteNamedIdCredentials.indexById(
+                Arrays.<Credentials>asList(first, second, other));
+        assertEquals(2, index.size());
+        assertSame(first, index.get("duplicate"));
+        assertSame(other, index.get("other"));
+        assertNull(GraniteNamedIdCredentials.getCredentialsById(""));
+        assertNull(GraniteNamedIdCredentials.getCredentialsById(null));
+    }
+
+    private static String generatePem() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        StringWriter pem = new StringWriter();
+        PEMWriter writer = new PEMWriter(pem);
+        try {
+            writer.writeObject(generator.generateKeyPair());
+        } finally {
+            writer.close();
+        }
+        return pem.toString();
+    }
+
+    private static final class TestKey implements SSHUserPrivateKey {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String username;
+        private final String privateKey;
+
+        private TestKey(String id, String username, String privateKey) {
+            this.id = id;
+            this.username = username;
+            this.privateKey = privateKey;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPrivateKey() {
+            return privateKey;
+        }
+
+        public Secret getPassphrase() {
+            return null;
+        }
+
+        public String getDescription() {
+            return id;
+        }
+
+        public CredentialsScope getScope() {
+            return CredentialsScope.GLOBAL;
+        }
+
+        public CredentialsDescriptor getDescriptor() {
+            return null;
+        }
+    }
+}
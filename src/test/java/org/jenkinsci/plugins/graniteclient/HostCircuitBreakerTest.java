@@ -0,0 +1,151 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HostCircuitBreakerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOffByDefault() {
+        assertEquals(0, new GraniteClientConfig("http://default.example.com", null, 0L, 0L)
+                .getCircuitBreakerThreshold());
+    }
+
+    @Test
+    public void testNormalizedBaseUrlsShareABreaker() {
+        assertSame(HostCircuitBreaker.forBaseUrl("http://Author.example.com:4502/"),
+                   HostCircuitBreaker.forBaseUrl("http://author.example.com:4502"));
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        HostCircuitBreaker breaker = HostCircuitBreaker.forBaseUrl("http://opens.example.com");
+        breaker.recordFailure(3);
+        breaker.recordFailure(3);
+        breaker.recordSuccess();
+        breaker.recordFailure(3);
+        breaker.recordFailure(3);
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(3, 60000L);
+
+        breaker.recordFailure(3);
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire(3, 60000L);
+            fail("expected the open circuit to refuse the execution");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("3 consecutive"));
+        }
+    }
+
+    @Test
+    public void testHalfOpenAdmitsOneProbe() throws Exception {
+        HostCircuitBreaker breaker = HostCircuitBreaker.forBaseUrl("http://probe.example.com");
+        breaker.recordFailure(1);
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState());
+
+        breaker.acquire(1, 0L);
+        assertEquals(HostCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire(1, 0L);
+            fail("expected a second probe to be refused");
+        } catch (IOException e) {
+            assertEquals(HostCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        }
+
+        breaker.recordFailure(1);
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState());
+        breaker.acquire(1, 0L);
+        breaker.recordSuccess();
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testDisabledBreakerNeverOpens() throws Exception {
+        HostCircuitBreaker breaker = HostCircuitBreaker.forBaseUrl("http://disabled.example.com");
+        for (int i = 0; i < 10; i++) {
+            breaker.recordFailure(0);
+        }
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(0, 60000L);
+    }
+
+    @Test
+    public void testFailedLoginsOpenTheCircuit() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        String baseUrl = server.getBaseUrl();
+        server.stop();
+
+        // the breaker is off unless a threshold is configured
+        GraniteAHCFactory factory = GraniteAHCFactory.getFactoryInstance();
+        GraniteClientConfig config;
+        factory.setCircuitBreakerThreshold(2);
+        try {
+            config = new GraniteClientConfig(baseUrl, null, 1000L, 1000L);
+        } finally {
+            factory.setCircuitBreakerThreshold(0);
+        }
+        assertEquals(2, config.getCircuitBreakerThreshold());
+
+        PackageManagerClientCallable<Boolean> callable = new PackageManagerClientCallable<Boolean>() {
+            public Boolean doExecute(PackageManagerClient client) throws Exception {
+                return true;
+            }
+        };
+        for (int i = 0; i < config.getCircuitBreakerThreshold(); i++) {
+            try {
+                GraniteClientExecutor.execute(callable, config);
+                fail("expected the login to fail");
+            } catch (Exception e) {
+                // the server is down
+            }
+        }
+
+        assertEquals(HostCircuitBreaker.State.OPEN, HostCircuitBreaker.forBaseUrl(baseUrl).getState());
+        try {
+            GraniteClientExecutor.execute(callable, config);
+            fail("expected the open circuit to refuse the execution");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not connecting to"));
+        }
+    }
+}
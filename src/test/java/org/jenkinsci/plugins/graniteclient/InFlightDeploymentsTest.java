@@ -0,0 +1,249 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightDeploymentsTest {
+
+    private static final PackageInstallOptions OPTIONS = new PackageInstallOptions(false, 1024, ACHandling.IGNORE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TaskListener listener = new StreamTaskListener(System.out);
+
+    @Test
+    public void testIdenticalDeploymentsAreCoalesced() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server"))
+                .setInstallTimeInMs(1000L).start();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            File file = new File(folder.getRoot(), "coalesced-1.0.zip");
+            DeploymentBenchmark.writePackage(file, "test", "coalesced", "1.0", 1024L, new Random(1L));
+            final PackId packId = PackId.identifyPackage(file);
+            final Map<PackId, String> keys = Collections.singletonMap(packId, InFlightDeployments.getKey(
+                    server.getBaseUrl(), packId, "1024@0", OPTIONS, ExistingPackageBehavior.OVERWRITE));
+
+            final CountDownLatch started = new CountDownLatch(1);
+            final InFlightDeployments.Deployment deployment = new StubDeployment(server, file, started);
+            final List<PackageDeploymentResult> ownerPerformed = new ArrayList<PackageDeploymentResult>();
+            Future<List<PackageDeploymentResult>> owner = pool.submit(
+                    new Callable<List<PackageDeploymentResult>>() {
+                        public List<PackageDeploymentResult> call() throws Exception {
+                            return InFlightDeployments.deploy(keys, "owner", listener, deployment, ownerPerformed);
+                        }
+                    });
+            assertTrue(started.await(30L, TimeUnit.SECONDS));
+
+            List<PackageDeploymentResult> attachedPerformed = new ArrayList<PackageDeploymentResult>();
+            List<PackageDeploymentResult> attached = InFlightDeployments.deploy(
+                    keys, "attached", listener, deployment, attachedPerformed);
+
+            assertEquals(Result.SUCCESS, owner.get(30L, TimeUnit.SECONDS).get(0).getResult());
+            assertEquals(Result.SUCCESS, attached.get(0).getResult());
+            assertEquals(1, ownerPerformed.size());
+            assertEquals(0, attachedPerformed.size());
+            assertEquals(1, server.getUploadCount());
+            assertEquals(1, server.getInstallCount());
+        } finally {
+            pool.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testClaimedPackagesAreDeployedBeforeWaiting() throws Exception {
+        final PackId first = PackId.createPackId("test", "first", "1.0");
+        final PackId shared = PackId.createPackId("test", "shared", "1.0");
+        final String sharedKey = InFlightDeployments.getKey(
+                "http://ordering.example.com", shared, "1024@0", OPTIONS, ExistingPackageBehavior.OVERWRITE);
+
+        // the owner of the shared package only finishes once the other build has deployed its first package, which
+        // the other build would never do if it waited for the shared package first
+        final CountDownLatch sharedStarted = new CountDownLatch(1);
+        final CountDownLatch firstDeployed = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<PackageDeploymentResult>> owner = pool.submit(
+                    new Callable<List<PackageDeploymentResult>>() {
+                        public List<PackageDeploymentResult> call() throws Exception {
+                            return InFlightDeployments.deploy(
+                                    Collections.singletonMap(shared, sharedKey), "owner", listener,
+                                    new InFlightDeployments.Deployment() {
+                                        public List<PackageDeploymentResult> deploy(List<PackId> packIds)
+                                                throws IOException, InterruptedException {
+                                            sharedStarted.countDown();
+                                            if (!firstDeployed.await(30L, TimeUnit.SECONDS)) {
+                                                throw new IOException("first package was never deployed");
+                                            }
+                                            return succeed(packIds);
+                                        }
+                                    }, new ArrayList<PackageDeploymentResult>());
+                        }
+                    });
+            assertTrue(sharedStarted.await(30L, TimeUnit.SECONDS));
+
+            Map<PackId, String> keys = new LinkedHashMap<PackId, String>();
+            keys.put(first, InFlightDeployments.getKey(
+                    "http://ordering.example.com", first, "1024@0", OPTIONS, ExistingPackageBehavior.OVERWRITE));
+            keys.put(shared, sharedKey);
+            final List<List<PackId>> batches = new ArrayList<List<PackId>>();
+            List<PackageDeploymentResult> results = InFlightDeployments.deploy(
+                    keys, "waiter", listener, new InFlightDeployments.Deployment() {
+                        public List<PackageDeploymentResult> deploy(List<PackId> packIds) {
+                            batches.add(packIds);
+                            firstDeployed.countDown();
+                            return succeed(packIds);
+                        }
+                    }, new ArrayList<PackageDeploymentResult>());
+
+            assertEquals(Collections.singletonList(Collections.singletonList(first)), batches);
+            assertEquals(2, results.size());
+            assertEquals(Result.SUCCESS, results.get(1).getResult());
+            assertEquals(Result.SUCCESS, owner.get(30L, TimeUnit.SECONDS).get(0).getResult());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaiterDeploysWhenOwnerFailsUnexpectedly() throws Exception {
+        final PackId packId = PackId.createPackId("test", "abandoned", "1.0");
+        final Map<PackId, String> keys = Collections.singletonMap(packId, InFlightDeployments.getKey(
+                "http://abandoned.example.com", packId, "1024@0", OPTIONS, ExistingPackageBehavior.OVERWRITE));
+
+        final CountDownLatch ownerStarted = new CountDownLatch(1);
+        final CountDownLatch waiterWaiting = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<PackageDeploymentResult>> owner = pool.submit(
+                    new Callable<List<PackageDeploymentResult>>() {
+                        public List<PackageDeploymentResult> call() throws Exception {
+                            return InFlightDeployments.deploy(keys, "owner", listener,
+                                    new InFlightDeployments.Deployment() {
+                                        public List<PackageDeploymentResult> deploy(List<PackId> packIds)
+                                                throws InterruptedException {
+                                            ownerStarted.countDown();
+                                            waiterWaiting.await(30L, TimeUnit.SECONDS);
+                                            throw new IllegalStateException("owner aborted");
+                                        }
+                                    }, new ArrayList<PackageDeploymentResult>());
+                        }
+                    });
+            assertTrue(ownerStarted.await(30L, TimeUnit.SECONDS));
+
+            // the waiter logs nothing before it starts waiting for the owner
+            OutputStream waiterLog = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    waiterWaiting.countDown();
+                }
+            };
+            List<PackageDeploymentResult> performed = new ArrayList<PackageDeploymentResult>();
+            List<PackageDeploymentResult> results = InFlightDeployments.deploy(
+                    keys, "waiter", new StreamTaskListener(waiterLog), new InFlightDeployments.Deployment() {
+                        public List<PackageDeploymentResult> deploy(List<PackId> packIds) {
+                            return succeed(packIds);
+                        }
+                    }, performed);
+
+            assertEquals(Result.SUCCESS, results.get(0).getResult());
+            assertEquals(1, performed.size());
+            try {
+                owner.get(30L, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<PackageDeploymentResult> succeed(List<PackId> packIds) {
+        List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+        for (PackId packId : packIds) {
+            results.add(new PackageDeploymentResult(packId, Result.SUCCESS, 0L, 0L, 0L));
+        }
+        return results;
+    }
+
+    /**
+     * Deploys the package file to the stub server, signalling once the deployment has been claimed
+     */
+    private final class StubDeployment implements InFlightDeployments.Deployment {
+        private final StubPackageManagerServer server;
+        private final File file;
+        private final CountDownLatch started;
+
+        private StubDeployment(StubPackageManagerServer server, File file, CountDownLatch started) {
+            this.server = server;
+            this.file = file;
+            this.started = started;
+        }
+
+        public List<PackageDeploymentResult> deploy(List<PackId> packIds) throws IOException, InterruptedException {
+            started.countDown();
+            List<PackageDeploymentResult> results = new ArrayList<PackageDeploymentResult>();
+            for (PackId packId : packIds) {
+                PackageDeploymentCallable callable = new PackageDeploymentCallable(
+                        new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L), listener, packId, OPTIONS,
+                        ExistingPackageBehavior.OVERWRITE);
+                results.add(new PackageDeploymentResult(packId, callable.invoke(file, null), 0L, 0L, 0L));
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JenkinsResponseProgressListenerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSummaryCountsActionsAndKeepsErrors() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        ByteArrayOutputStream fullLog = new ByteArrayOutputStream();
+        JenkinsResponseProgressListener listener = new JenkinsResponseProgressListener(
+                new StreamTaskListener(console), InstallLogVerbosity.SUMMARY, fullLog);
+
+        report(listener);
+        listener.summarize();
+
+        String out = console.toString("UTF-8");
+        assertTrue(out, out.contains("Installing content"));
+        assertTrue(out, out.contains("ERROR: E /content/broken (stub)"));
+        assertTrue(out, out.contains("Summary: A=2 E=1 U=1"));
+        assertFalse(out, out.contains("/content/a"));
+
+        String full = fullLog.toString("UTF-8");
+        assertTrue(full, full.contains("A /content/a"));
+        assertTrue(full, full.contains("U /content/c"));
+        assertTrue(full, full.contains("ERROR: E /content/broken (stub)"));
+    }
+
+    @Test
+    public void testErrorsOnly() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        JenkinsResponseProgressListener listener = new JenkinsResponseProgressListener(
+                new StreamTaskListener(console), InstallLogVerbosity.ERRORS, null);
+
+        report(listener);
+        listener.summarize();
+
+        String out = console.toString("UTF-8");
+        assertTrue(out, out.contains("ERROR: E /content/broken (stub)"));
+        assertFalse(out, out.contains("Installing content"));
+        assertFalse(out, out.contains("Summary:"));
+        assertFalse(out, out.contains("/content/a"));
+    }
+
+    @Test
+    public void testLinesAreBufferedUntilFlushed() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        JenkinsResponseProgressListener listener = new JenkinsResponseProgressListener(
+                new StreamTaskListener(console), InstallLogVerbosity.FULL, null);
+
+        listener.onProgress("A", "/content/a");
+        assertEquals(0, console.size());
+
+        listener.flush();
+        assertTrue(console.toString("UTF-8").contains("A /content/a"));
+    }
+
+    @Test
+    public void testSummaryDeploymentWritesPathsToTheFullLogOnly() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        try {
+            server.setInstallLogLines(5).setInstallErrorLines(0);
+            File file = new File(folder.newFolder("packages"), "summary-1.0.zip");
+            DeploymentBenchmark.writePackage(file, "test", "summary", "1.0", 1024L, new Random(1L));
+
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+            PackageDeploymentResult result = new PackageDeploymentCallable(
+                    config, new StreamTaskListener(console), server.addPackage(file, false),
+                    new PackageInstallOptions(false, 1024, ACHandling.IGNORE), ExistingPackageBehavior.OVERWRITE,
+                    InstallLogVerbosity.SUMMARY).deploy(file, null);
+
+            assertEquals(Result.SUCCESS, result.getResult());
+            String out = console.toString("UTF-8");
+            assertTrue(out, out.contains("Summary: A=5"));
+            assertFalse(out, out.contains("/node0"));
+
+            File[] logs = file.getParentFile().listFiles();
+            File fullLog = null;
+            for (File log : logs) {
+                if (log.getName().endsWith(".log.gz")) {
+                    fullLog = log;
+                }
+            }
+            assertNotNull("expected a full installation log", fullLog);
+            InputStream in = new GZIPInputStream(new FileInputStream(fullLog));
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] chunk = new byte[4096];
+                for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                    bytes.write(chunk, 0, read);
+                }
+                String full = bytes.toString("UTF-8");
+                for (int i = 0; i < 5; i++) {
+                    assertTrue(full, full.contains("/content/stub/summary/node" + i));
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void report(JenkinsResponseProgressListener listener) {
+        listener.onStart("Installing content");
+        listener.onProgress("A", "/content/a");
+        listener.onProgress("A", "/content/b");
+        listener.onProgress("U", "/content/c");
+        listener.onError("/content/broken", "stub");
+    }
+}
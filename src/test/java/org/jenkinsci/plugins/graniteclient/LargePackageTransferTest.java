@@ -0,0 +1,111 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Deploys and downloads a package larger than the test heap through {@link StubPackageManagerServer}, so that a
+ * transfer which buffers whole packages in memory fails with an {@link OutOfMemoryError}. The surefire configuration
+ * runs the tests with a small heap. The package size defaults to 64 MB more than the heap, which is enough for the
+ * test to fail if a package is buffered while keeping the default build fast, and can be raised with the
+ * {@code crx.test.largePackageSizeMb} system property.
+ */
+public class LargePackageTransferTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    private static final long PACKAGE_SIZE = Long.getLong("crx.test.largePackageSizeMb",
+                                                          Runtime.getRuntime().maxMemory() / MB + 64L) * MB;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubPackageManagerServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue("The package must be larger than the heap, run the test with a smaller -Xmx",
+                   Runtime.getRuntime().maxMemory() < PACKAGE_SIZE);
+        server = new StubPackageManagerServer(folder.newFolder("server")).start();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDeployAndDownloadWithoutBuffering() throws Exception {
+        File file = new File(folder.newFolder("packages"), "large-1.0.zip");
+        DeploymentBenchmark.writePackage(file, "test", "large", "1.0", PACKAGE_SIZE, new Random(42L));
+        PackId packId = PackId.identifyPackage(file);
+
+        TaskListener listener = new StreamTaskListener(System.out);
+        GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+        try {
+            PackageDeploymentCallable deployment = new PackageDeploymentCallable(
+                    config, listener, packId, new PackageInstallOptions(false, 1024, ACHandling.IGNORE),
+                    ExistingPackageBehavior.OVERWRITE);
+            assertEquals(Result.SUCCESS, deployment.invoke(file, null));
+            assertEquals(1, server.getInstallCount());
+
+            File downloads = folder.newFolder("downloads");
+            PackageDownloadCallable download = new PackageDownloadCallable(
+                    config, listener, Collections.singletonList(packId), false);
+            List<PackageDeploymentResult> results = download.invoke(downloads, null);
+            assertEquals(Result.SUCCESS, PackageDeploymentResult.combine(results, 1));
+
+            File[] downloaded = downloads.listFiles();
+            assertEquals(1, downloaded != null ? downloaded.length : 0);
+            assertEquals(file.length(), downloaded[0].length());
+        } catch (OutOfMemoryError e) {
+            fail("A package of " + (PACKAGE_SIZE / MB) + " MB was buffered in memory: " + e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PackageDependenciesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParse() {
+        List<String[]> parsed = PackageDependencies.parse(
+                "day/cq540/product:cq-content:[5.4.0,5.5.0), acme:core:1.0,standalone");
+        assertEquals(3, parsed.size());
+        assertEquals(Arrays.asList("day/cq540/product", "cq-content"), Arrays.asList(parsed.get(0)));
+        assertEquals(Arrays.asList("acme", "core"), Arrays.asList(parsed.get(1)));
+        assertEquals(Arrays.asList("", "standalone"), Arrays.asList(parsed.get(2)));
+    }
+
+    @Test
+    public void testParseEmpty() {
+        assertTrue(PackageDependencies.parse(null).isEmpty());
+        assertTrue(PackageDependencies.parse(" , ").isEmpty());
+    }
+
+    @Test
+    public void testSortInstallsDependenciesFirst() throws Exception {
+        Map<PackId, FilePath> packages = new LinkedHashMap<PackId, FilePath>();
+        addPackage(packages, "site", "acme:core:[1.0,2.0),acme:config:1.0");
+        addPackage(packages, "config", "acme:core:1.0");
+        addPackage(packages, "core", null);
+        addPackage(packages, "unrelated", "other:missing:1.0");
+
+        Map<PackId, FilePath> sorted = PackageDependencies.sort(
+                packages, new FilePath(folder.getRoot()), new StreamTaskListener(System.out));
+
+        assertEquals(Arrays.asList("core", "config", "site", "unrelated"), getNames(sorted));
+    }
+
+    @Test
+    public void testCircularDependenciesKeepTheGivenOrder() throws Exception {
+        Map<PackId, FilePath> packages = new LinkedHashMap<PackId, FilePath>();
+        addPackage(packages, "a", "acme:b:1.0");
+        addPackage(packages, "b", "acme:a:1.0");
+        addPackage(packages, "c", "acme:d:1.0");
+        addPackage(packages, "d", null);
+
+        Map<PackId, FilePath> sorted = PackageDependencies.sort(
+                packages, new FilePath(folder.getRoot()), new StreamTaskListener(System.out));
+
+        assertEquals(Arrays.asList("d", "a", "b", "c"), getNames(sorted));
+    }
+
+    private static List<String> getNames(Map<PackId, FilePath> packages) {
+        List<String> names = new ArrayList<String>();
+        for (PackId packId : packages.keySet()) {
+            names.add(packId.getName());
+        }
+        return names;
+    }
+
+    private void addPackage(Map<PackId, FilePath> packages, String name, String dependencies) throws IOException {
+        File file = folder.newFile(name + "-1.0.zip");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zip.putNextEntry(new ZipEntry("META-INF/vault/properties.xml"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+                    + "<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
+                    + "<properties>\n"
+                    + "<entry key=\"group\">acme</entry>\n"
+                    + "<entry key=\"name\">" + name + "</entry>\n"
+                    + "<entry key=\"version\">1.0</entry>\n"
+                    + (dependencies != null ? "<entry key=\"dependencies\">" + dependencies + "</entry>\n" : "")
+                    + "</properties>\n").getBytes("UTF-8"));
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+        packages.put(PackId.identifyPackage(file), new FilePath(file));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PackageDeploymentResultTest {
+
+    private static final PackId CORE = PackId.parsePid("acme:core:1.0");
+    private static final PackId CONFIG = PackId.parsePid("acme:config:1.0");
+    private static final PackId SITE = PackId.parsePid("acme:site:1.0");
+
+    @Test
+    public void testSkippedAndDeployedResultsKeepPackageOrder() {
+        PackageDeploymentResult skipped = new PackageDeploymentResult(CONFIG, Result.SUCCESS, 0L);
+        PackageDeploymentResult core = new PackageDeploymentResult(CORE, Result.SUCCESS, 10L, 5L, 5L);
+        PackageDeploymentResult site = new PackageDeploymentResult(SITE, Result.FAILURE, 10L, 5L, -1L);
+
+        List<PackageDeploymentResult> ordered = PackageDeploymentResult.inOrder(
+                Arrays.asList(CORE, CONFIG, SITE), Arrays.asList(skipped, core, site));
+        assertEquals(Arrays.asList(core, skipped, site), ordered);
+    }
+
+    @Test
+    public void testPackagesWithoutResultsAreLeftOut() {
+        PackageDeploymentResult core = new PackageDeploymentResult(CORE, Result.FAILURE, 10L, 5L, -1L);
+
+        List<PackageDeploymentResult> ordered = PackageDeploymentResult.inOrder(
+                Arrays.asList(CORE, CONFIG, SITE), Arrays.asList(core));
+        assertEquals(Arrays.asList(core), ordered);
+        assertEquals(Result.FAILURE, PackageDeploymentResult.combine(ordered, 3));
+    }
+}
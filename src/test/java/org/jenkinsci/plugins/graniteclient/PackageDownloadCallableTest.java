@@ -0,0 +1,118 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackageDownloadCallableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubPackageManagerServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubPackageManagerServer(folder.newFolder("server")).start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testParallelDownloadsUseTheirOwnClients() throws Exception {
+        List<PackId> packIds = addPackages("parallel", 4);
+        server.setLatencyInMs(50L);
+
+        GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L, true);
+        List<PackageDeploymentResult> results = new PackageDownloadCallable(
+                config, new StreamTaskListener(System.out), packIds, Collections.<String>emptyList(), false,
+                RetryPolicy.NONE, 4).invoke(folder.newFolder("downloads"), null);
+
+        assertEquals(packIds.size(), results.size());
+        for (int i = 0; i < packIds.size(); i++) {
+            assertEquals(packIds.get(i), results.get(i).getPackId());
+            assertEquals(Result.SUCCESS, results.get(i).getResult());
+        }
+        assertEquals(packIds.size(), server.getDownloadCount());
+        assertEquals(4, server.getLoginCount());
+    }
+
+    @Test
+    public void testFailedSourceWithOnlyFiltersIsNotAnEmptySuccess() throws Exception {
+        StubPackageManagerServer stopped = new StubPackageManagerServer(folder.newFolder("stopped")).start();
+        String baseUrl = stopped.getBaseUrl();
+        stopped.stop();
+
+        GraniteClientConfig config = new GraniteClientConfig(baseUrl, null, 1000L, 1000L);
+        try {
+            new PackageDownloadCallable(config, new StreamTaskListener(System.out), Collections.<PackId>emptyList(),
+                                        Collections.singletonList("test:*:latest"), true, RetryPolicy.NONE, 1)
+                    .invoke(folder.newFolder("failed"), null);
+            fail("expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(baseUrl));
+        }
+
+        assertEquals(Result.FAILURE,
+                     PackageDeploymentResult.combine(Collections.<PackageDeploymentResult>emptyList(), 1));
+        assertEquals(Result.SUCCESS,
+                     PackageDeploymentResult.combine(Collections.<PackageDeploymentResult>emptyList(), 0));
+    }
+
+    private List<PackId> addPackages(String prefix, int count) throws Exception {
+        Random random = new Random(1L);
+        List<PackId> packIds = new ArrayList<PackId>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(folder.getRoot(), prefix + i + "-1.0.zip");
+            DeploymentBenchmark.writePackage(file, "test", prefix + i, "1.0", 1024L, random);
+            packIds.add(server.addPackage(file, true));
+        }
+        return packIds;
+    }
+}
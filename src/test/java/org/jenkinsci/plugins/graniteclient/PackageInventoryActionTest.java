@@ -0,0 +1,155 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.ListResponse;
+import net.adamcin.granite.client.packman.ListResult;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackageInventoryActionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(1L);
+    private StubPackageManagerServer first;
+    private StubPackageManagerServer second;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new StubPackageManagerServer(folder.newFolder("first")).start();
+        second = new StubPackageManagerServer(folder.newFolder("second")).start();
+    }
+
+    @After
+    public void tearDown() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testDriftBetweenServers() throws Exception {
+        addPackage(first, "same", "1.0", true);
+        addPackage(second, "same", "1.0", true);
+        addPackage(first, "drift", "1.0", true);
+        addPackage(second, "drift", "1.1", true);
+        addPackage(second, "uploaded", "1.0", false);
+
+        Map<String, List<ListResult>> listings = new LinkedHashMap<String, List<ListResult>>();
+        listings.put(first.getBaseUrl(), list(first));
+        listings.put(second.getBaseUrl(), list(second));
+        PackageInventoryAction inventory =
+                PackageInventoryAction.create(listings, Collections.<String, String>emptyMap());
+
+        assertEquals(2, inventory.getHosts().size());
+        assertEquals(3, inventory.getRows().size());
+        assertEquals(1, inventory.getDriftedRows().size());
+
+        PackageInventoryAction.Row drift = inventory.getDriftedRows().get(0);
+        assertEquals("test:drift", drift.getPackageName());
+        assertEquals(first.getBaseUrl(), drift.getCells().get(0).getBaseUrl());
+        assertEquals("1.0", drift.getCells().get(0).getInstalled());
+        assertEquals("1.1", drift.getCells().get(1).getInstalled());
+
+        PackageInventoryAction.Row uploaded = findRow(inventory, "test:uploaded");
+        assertFalse(uploaded.isDrift());
+        assertEquals("", uploaded.getCells().get(1).getInstalled());
+        assertEquals("1.0", uploaded.getCells().get(1).getUploaded());
+    }
+
+    @Test
+    public void testPackageMissingFromOneServerHasDrifted() throws Exception {
+        addPackage(first, "missing", "1.0", true);
+
+        Map<String, List<ListResult>> listings = new LinkedHashMap<String, List<ListResult>>();
+        listings.put(first.getBaseUrl(), list(first));
+        listings.put(second.getBaseUrl(), list(second));
+        PackageInventoryAction inventory =
+                PackageInventoryAction.create(listings, Collections.<String, String>emptyMap());
+
+        PackageInventoryAction.Row row = findRow(inventory, "test:missing");
+        assertTrue(row.isDrift());
+        assertEquals("", row.getCells().get(1).getInstalled());
+    }
+
+    @Test
+    public void testFailedServersAreKeptApart() throws Exception {
+        addPackage(first, "scanned", "1.0", true);
+
+        Map<String, List<ListResult>> listings = new LinkedHashMap<String, List<ListResult>>();
+        listings.put(first.getBaseUrl(), list(first));
+        PackageInventoryAction inventory = PackageInventoryAction.create(
+                listings, Collections.singletonMap("http://down.example.com:4502", "Connection refused"));
+
+        assertEquals(Collections.singletonList(first.getBaseUrl()), inventory.getHosts());
+        assertEquals(Collections.singletonList("http://down.example.com:4502"), inventory.getFailedHosts());
+        assertTrue(inventory.getDriftedRows().isEmpty());
+    }
+
+    private void addPackage(StubPackageManagerServer server, String name, String version, boolean installed)
+            throws Exception {
+        File file = new File(folder.newFolder(), name + "-" + version + ".zip");
+        DeploymentBenchmark.writePackage(file, "test", name, version, 1024L, random);
+        server.addPackage(file, installed);
+    }
+
+    private static List<ListResult> list(StubPackageManagerServer server) throws Exception {
+        GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+        return GraniteClientExecutor.execute(new PackageManagerClientCallable<List<ListResult>>() {
+            public List<ListResult> doExecute(PackageManagerClient client) throws Exception {
+                ListResponse response = client.list();
+                assertTrue(response.getMessage(), response.isSuccess());
+                return response.getResults();
+            }
+        }, config);
+    }
+
+    private static PackageInventoryAction.Row findRow(PackageInventoryAction inventory, String packageName) {
+        for (PackageInventoryAction.Row row : inventory.getRows()) {
+            if (row.getPackageName().equals(packageName)) {
+                return row;
+            }
+        }
+        throw new AssertionError("no row for " + packageName);
+    }
+}
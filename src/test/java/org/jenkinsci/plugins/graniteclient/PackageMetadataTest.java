@@ -0,0 +1,153 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lists packages with their metadata from {@link StubPackageManagerServer} and resolves download filters against the
+ * listing, as the {@link PackageMirror} sync and download steps using the mirror do.
+ */
+public class PackageMetadataTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubPackageManagerServer server;
+    private GraniteClientConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testParse() {
+        Map<PackId, PackageMetadata> listed = PackageMetadata.parse(
+                "{\"results\":[{\"pid\":\"acme:site:1.0\",\"size\":2048,\"lastModified\":1000},"
+                        + "{\"pid\":\"acme:core:1.0\",\"size\":1024,\"created\":500}],\"total\":2}");
+        PackageMetadata site = listed.get(PackId.parsePid("acme:site:1.0"));
+        assertEquals(2048L, site.getSize());
+        assertEquals(1000L, site.getLastModified());
+        assertEquals(500L, listed.get(PackId.parsePid("acme:core:1.0")).getLastModified());
+    }
+
+    @Test
+    public void testUnknownMetadataIsNeverTheSame() {
+        assertFalse(new PackageMetadata(PackId.parsePid("acme:site:1.0"), -1L, -1L).isSameAs(-1L, -1L));
+        assertTrue(new PackageMetadata(PackId.parsePid("acme:site:1.0"), 10L, 20L).isSameAs(10L, 20L));
+    }
+
+    @Test
+    public void testResolveFiltersAgainstListing() throws Exception {
+        addPackage("a", "1.0", 1024L);
+        PackId latest = addPackage("a", "1.1", 1024L);
+        PackId other = addPackage("b", "1.0", 1024L);
+
+        Map<PackId, PackageMetadata> listed = GraniteClientExecutor.listMetadata(config);
+        assertEquals(3, listed.size());
+
+        assertEquals(Collections.singletonList(latest),
+                     PackageDownloadCallable.resolveFilter("test:a:latest", listed.keySet()));
+        assertEquals(3, PackageDownloadCallable.resolveFilter("test:*", listed.keySet()).size());
+        List<PackId> latestOfEach = PackageDownloadCallable.resolveFilter("test:*:latest", listed.keySet());
+        assertEquals(2, latestOfEach.size());
+        assertTrue(latestOfEach.containsAll(Arrays.asList(latest, other)));
+        assertTrue(PackageDownloadCallable.resolveFilter("other:*", listed.keySet()).isEmpty());
+    }
+
+    @Test
+    public void testRebuiltPackageIsNotTheSame() throws Exception {
+        PackId packId = addPackage("a", "1.0", 1024L);
+        PackageMetadata mirrored = GraniteClientExecutor.listMetadata(config).get(packId);
+        assertEquals(new File(folder.getRoot(), "packages/a-1.0-1024.zip").length(), mirrored.getSize());
+        assertTrue(GraniteClientExecutor.listMetadata(config).get(packId)
+                           .isSameAs(mirrored.getSize(), mirrored.getLastModified()));
+
+        addPackage("a", "1.0", 2048L);
+        assertFalse(GraniteClientExecutor.listMetadata(config).get(packId)
+                            .isSameAs(mirrored.getSize(), mirrored.getLastModified()));
+    }
+
+    @Test
+    public void testPruneRemovesPackagesNoLongerListed() {
+        PackId kept = PackId.parsePid("test:a:1.1");
+        PackId removed = PackId.parsePid("test:a:1.0");
+        PackageMirror.Index index = new PackageMirror.Index();
+        index.put("http://mirror.example.com:4502", kept, new PackageMirror.Entry("test/a-1.1.zip", 10L, 20L));
+        index.put("http://mirror.example.com:4502", removed, new PackageMirror.Entry("test/a-1.0.zip", 10L, 20L));
+        index.put("http://other.example.com:4502", removed, new PackageMirror.Entry("test/a-1.0.zip", 10L, 20L));
+
+        assertEquals(Collections.singletonList("test/a-1.0.zip"),
+                     index.prune("HTTP://mirror.example.com:4502/", Collections.singletonList(kept)));
+        assertTrue(index.get("http://mirror.example.com:4502", kept) != null);
+        assertTrue(index.get("http://mirror.example.com:4502", removed) == null);
+        assertTrue(index.get("http://other.example.com:4502", removed) != null);
+    }
+
+    @Test
+    public void testSyncHasTimeouts() {
+        GraniteClientConfig syncConfig =
+                PackageMirror.getSyncConfig(GraniteAHCFactory.getFactoryInstance(), server.getBaseUrl());
+        assertTrue(syncConfig.getRequestTimeout() >= 60000L);
+        assertTrue(syncConfig.getServiceTimeout() > 0L);
+    }
+
+    private PackId addPackage(String name, String version, long payloadSize) throws IOException {
+        File directory = new File(folder.getRoot(), "packages");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File file = new File(directory, name + "-" + version + "-" + payloadSize + ".zip");
+        DeploymentBenchmark.writePackage(file, "test", name, version, payloadSize, new Random(payloadSize));
+        return server.addPackage(file, false);
+    }
+}
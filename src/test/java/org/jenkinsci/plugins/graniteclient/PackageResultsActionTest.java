@@ -0,0 +1,125 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackageResultsActionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResultsAreCombinedPerOperation() {
+        PackId packId = PackId.createPackId("test", "results", "1.0");
+        PackageResultsAction action = new PackageResultsAction();
+        action.add(PackageResultsAction.DEPLOY, "http://one:4502",
+                   Collections.singletonList(new PackageDeploymentResult(packId, Result.SUCCESS, 10L, 5L, 5L)),
+                   Result.SUCCESS);
+        action.add(PackageResultsAction.DEPLOY, "http://two:4502",
+                   Collections.singletonList(new PackageDeploymentResult(packId, Result.FAILURE, 10L, 5L, -1L)),
+                   Result.FAILURE);
+        action.add(PackageResultsAction.DEPLOY, "http://three:4502",
+                   Collections.singletonList(new PackageDeploymentResult(packId, Result.UNSTABLE, 10L, 5L, 5L)),
+                   Result.UNSTABLE);
+
+        assertEquals(3, action.getHostResults().size());
+        assertEquals("http://two:4502", action.getHostResults().get(1).getBaseUrl());
+        assertEquals(packId, action.getHostResults().get(1).getPackages().get(0).getPackId());
+        assertEquals(Result.FAILURE, action.getResult(PackageResultsAction.DEPLOY));
+        assertNull(action.getResult(PackageResultsAction.DOWNLOAD));
+
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(null, env);
+        assertEquals("FAILURE", env.get("CRX_DEPLOY_RESULT"));
+        assertFalse(env.containsKey("CRX_DOWNLOAD_RESULT"));
+        assertEquals("http://two:4502", env.get("CRX_FAILED_HOSTS"));
+    }
+
+    @Test
+    public void testCheckpointsMatchTheServerPackageAndDigest() {
+        PackId packId = PackId.createPackId("test", "results", "1.0");
+        PackageResultsAction action = new PackageResultsAction();
+        assertFalse(action.hasCheckpoint("http://one:4502", packId, "abc"));
+
+        action.addCheckpoint("http://one:4502", packId, "abc");
+        assertTrue(action.hasCheckpoint("http://one:4502", packId, "abc"));
+        assertFalse(action.hasCheckpoint("http://one:4502", packId, "def"));
+        assertFalse(action.hasCheckpoint("http://two:4502", packId, "abc"));
+    }
+
+    @Test
+    public void testRecordsDownloadsFromTheServer() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        try {
+            Random random = new Random(1L);
+            File first = new File(folder.getRoot(), "first-1.0.zip");
+            File second = new File(folder.getRoot(), "second-1.0.zip");
+            DeploymentBenchmark.writePackage(first, "test", "first", "1.0", 1024L, random);
+            DeploymentBenchmark.writePackage(second, "test", "second", "1.0", 1024L, random);
+            List<PackId> packIds = Arrays.asList(server.addPackage(first, true), server.addPackage(second, true));
+
+            GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+            List<PackageDeploymentResult> results = new PackageDownloadCallable(
+                    config, new StreamTaskListener(System.out), packIds, Collections.<String>emptyList(), false,
+                    RetryPolicy.NONE, 1).invoke(folder.newFolder("downloads"), null);
+
+            PackageResultsAction action = new PackageResultsAction();
+            action.add(PackageResultsAction.DOWNLOAD, server.getBaseUrl(), results,
+                       PackageDeploymentResult.combine(results, 0));
+
+            PackageResultsAction.HostResult hostResult = action.getHostResults().get(0);
+            assertEquals(PackageResultsAction.DOWNLOAD, hostResult.getOperation());
+            assertEquals(Result.SUCCESS, hostResult.getResult());
+            assertEquals(packIds.size(), hostResult.getPackages().size());
+            for (int i = 0; i < packIds.size(); i++) {
+                assertEquals(packIds.get(i), hostResult.getPackages().get(i).getPackId());
+                assertEquals(Result.SUCCESS, hostResult.getPackages().get(i).getResult());
+            }
+            assertEquals(Result.SUCCESS, action.getResult(PackageResultsAction.DOWNLOAD));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.ning.http.client.AsyncHttpClient;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import net.adamcin.granite.client.packman.ListResponse;
+import net.adamcin.granite.client.packman.PackageManagerClient;
+import net.adamcin.granite.client.packman.SimpleResponse;
+import net.adamcin.granite.client.packman.async.AsyncPackageManagerClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdempotentStepsRetryTransientErrors() {
+        assertTrue(RetryPolicy.isRetryable(RetryPolicy.Step.READ, new IOException("reset")));
+        assertTrue(RetryPolicy.isRetryable(RetryPolicy.Step.DOWNLOAD, new TimeoutException()));
+        assertTrue(RetryPolicy.isRetryable(RetryPolicy.Step.UPLOAD_OVERWRITE,
+                                           new ExecutionException(new IOException("reset"))));
+        assertFalse(RetryPolicy.isRetryable(RetryPolicy.Step.READ, new IllegalStateException("bad response")));
+    }
+
+    @Test
+    public void testOtherStepsRetryOnlyConnectFailures() {
+        assertFalse(RetryPolicy.isRetryable(RetryPolicy.Step.INSTALL, new IOException("reset")));
+        assertFalse(RetryPolicy.isRetryable(RetryPolicy.Step.UPLOAD, new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isRetryable(RetryPolicy.Step.INSTALL,
+                                           new ExecutionException(new ConnectException("refused"))));
+        assertTrue(RetryPolicy.isRetryable(RetryPolicy.Step.UPLOAD, new ConnectException("refused")));
+    }
+
+    @Test
+    public void testTimeouts() {
+        assertTrue(RetryPolicy.isTimeout(new TimeoutException()));
+        assertTrue(RetryPolicy.isTimeout(new IOException(new SocketTimeoutException())));
+        assertFalse(RetryPolicy.isTimeout(new ConnectException("refused")));
+    }
+
+    @Test
+    public void testDelayStaysWithinBackoff() {
+        RetryPolicy policy = new RetryPolicy(5, 1000L, 0, null);
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            long exponential = Math.min(1000L << (attempt - 1), 60000L);
+            long delay = policy.getDelay(attempt);
+            assertTrue("delay " + delay + " of retry " + attempt, delay >= exponential / 2L && delay <= exponential);
+        }
+        assertTrue(policy.getDelay(40) <= 60000L);
+    }
+
+    @Test
+    public void testRetriesUntilSuccess() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        String result = new RetryPolicy(3, 1L, 0, null).execute(
+                RetryPolicy.Step.READ, new GraniteClientConfig("http://localhost:4502", null, 0L, 0L), null,
+                new PackageManagerClientCallable<String>() {
+                    public String doExecute(PackageManagerClient client) throws Exception {
+                        if (attempts.incrementAndGet() < 3) {
+                            throw new IOException("reset");
+                        }
+                        return "done";
+                    }
+                }, new StreamTaskListener(System.out));
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testInstallIsNotRepeated() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            new RetryPolicy(3, 1L, 0, null).execute(
+                    RetryPolicy.Step.INSTALL, new GraniteClientConfig("http://localhost:4502", null, 0L, 0L), null,
+                    new PackageManagerClientCallable<String>() {
+                        public String doExecute(PackageManagerClient client) throws Exception {
+                            attempts.incrementAndGet();
+                            throw new IOException("reset");
+                        }
+                    }, new StreamTaskListener(System.out));
+            fail("expected the install to fail");
+        } catch (IOException e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testInstallIsRetriedWhenTheServerRefusesConnections() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        String baseUrl = server.getBaseUrl();
+        server.stop();
+
+        final AtomicInteger attempts = new AtomicInteger();
+        AsyncHttpClient ahcClient = GraniteAHCFactory.getFactoryInstance().newInstance();
+        AsyncPackageManagerClient client = new AsyncPackageManagerClient(ahcClient);
+        client.setBaseUrl(baseUrl);
+        try {
+            new RetryPolicy(2, 1L, 0, null).execute(
+                    RetryPolicy.Step.INSTALL, new GraniteClientConfig(baseUrl, null, 0L, 0L), client,
+                    new PackageManagerClientCallable<Boolean>() {
+                        public Boolean doExecute(PackageManagerClient client) throws Exception {
+                            attempts.incrementAndGet();
+                            return client.existsOnServer(PackId.createPackId("test", "refused", "1.0"));
+                        }
+                    }, new StreamTaskListener(System.out));
+            fail("expected the connection to be refused");
+        } catch (Exception e) {
+            assertTrue(RetryPolicy.isConnectFailure(e));
+            assertEquals(3, attempts.get());
+        } finally {
+            ahcClient.close();
+        }
+    }
+
+    @Test
+    public void testUploadIsRetriedOnServiceUnavailable() throws Exception {
+        StubPackageManagerServer server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        AsyncHttpClient ahcClient = GraniteAHCFactory.getFactoryInstance().newInstance();
+        try {
+            final File file = new File(folder.getRoot(), "unavailable-1.0.zip");
+            DeploymentBenchmark.writePackage(file, "test", "unavailable", "1.0", 1024L, new Random(1L));
+            final PackId packId = PackId.identifyPackage(file);
+            AsyncPackageManagerClient client = new AsyncPackageManagerClient(ahcClient);
+            client.setBaseUrl(server.getBaseUrl());
+
+            server.failNextRequests(2);
+            SimpleResponse response = new RetryPolicy(3, 1L, 0, null).execute(
+                    RetryPolicy.Step.UPLOAD_OVERWRITE, new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L),
+                    client, new PackageManagerClientCallable<SimpleResponse>() {
+                        public SimpleResponse doExecute(PackageManagerClient client) throws Exception {
+                            return client.upload(file, true, packId);
+                        }
+                    }, new StreamTaskListener(System.out));
+            assertTrue(response.isSuccess());
+            assertEquals(1, server.getUploadCount());
+
+            server.failNextRequests(1);
+            ListResponse list = new RetryPolicy(1, 1L, 0, null).execute(
+                    RetryPolicy.Step.READ, new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L),
+                    client, new PackageManagerClientCallable<ListResponse>() {
+                        public ListResponse doExecute(PackageManagerClient client) throws Exception {
+                            return client.list();
+                        }
+                    }, new StreamTaskListener(System.out));
+            assertTrue(list.isSuccess());
+            assertEquals(1, list.getResults().size());
+        } finally {
+            ahcClient.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUnavailableResponses() {
+        assertTrue(RetryPolicy.isUnavailable(false, "503 Service Unavailable"));
+        assertFalse(RetryPolicy.isUnavailable(true, "503 Service Unavailable"));
+        assertFalse(RetryPolicy.isUnavailable(false, "Package already exists"));
+        assertFalse(RetryPolicy.isUnavailable("503"));
+    }
+
+    @Test
+    public void testBudgetLimitsRetries() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(10, 1L, 2, "RetryPolicyTest#testBudgetLimitsRetries");
+        try {
+            policy.execute(RetryPolicy.Step.READ, new GraniteClientConfig("http://localhost:4502", null, 0L, 0L),
+                           null, new PackageManagerClientCallable<String>() {
+                        public String doExecute(PackageManagerClient client) throws Exception {
+                            attempts.incrementAndGet();
+                            throw new IOException("reset");
+                        }
+                    }, new StreamTaskListener(System.out));
+            fail("expected the read to fail");
+        } catch (IOException e) {
+            assertEquals(3, attempts.get());
+        }
+    }
+}
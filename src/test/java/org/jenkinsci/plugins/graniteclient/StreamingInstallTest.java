@@ -0,0 +1,98 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.ACHandling;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingInstallTest {
+
+    private static final long INSTALL_TIME = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubPackageManagerServer server;
+    private File file;
+    private PackId packId;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubPackageManagerServer(folder.newFolder("server")).start();
+        file = new File(folder.getRoot(), "streaming-1.0.zip");
+        DeploymentBenchmark.writePackage(file, "test", "streaming", "1.0", 1024L, new Random(1L));
+        packId = PackId.identifyPackage(file);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testErrorThresholdAbortsBeforeTheInstallFinishes() throws Exception {
+        server.setInstallLogLines(0).setInstallErrorLines(20).setInstallTimeInMs(INSTALL_TIME);
+
+        long started = System.currentTimeMillis();
+        PackageDeploymentResult result = deploy(new PackageInstallOptions(false, 1024, ACHandling.IGNORE, 2));
+        long elapsed = System.currentTimeMillis() - started;
+
+        assertEquals(Result.FAILURE, result.getResult());
+        assertTrue("deployment took " + elapsed + " ms", elapsed < INSTALL_TIME / 2L);
+    }
+
+    @Test
+    public void testStreamedInstallReportsTheResult() throws Exception {
+        server.setInstallLogLines(5).setInstallErrorLines(0);
+        assertEquals(Result.SUCCESS, deploy(new PackageInstallOptions(false, 1024, ACHandling.IGNORE, 2)).getResult());
+        assertEquals(1, server.getInstallCount());
+
+        server.setInstallErrorLines(1);
+        assertEquals(Result.UNSTABLE, deploy(new PackageInstallOptions(false, 1024, ACHandling.IGNORE, 2)).getResult());
+        assertEquals(2, server.getInstallCount());
+    }
+
+    private PackageDeploymentResult deploy(PackageInstallOptions options) {
+        GraniteClientConfig config = new GraniteClientConfig(server.getBaseUrl(), null, 0L, 0L);
+        return new PackageDeploymentCallable(config, new StreamTaskListener(System.out), packId, options,
+                                             ExistingPackageBehavior.OVERWRITE).deploy(file, null);
+    }
+}
@@ -0,0 +1,807 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.adamcin.granite.client.packman.PackId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lightweight in-process stand-in for the CRX package manager service, speaking just enough of the HTTP API used by
+ * {@link net.adamcin.granite.client.packman.async.AsyncPackageManagerClient} (login, list, upload, install,
+ * uninstall, delete, download and service readiness) to run the deployment callables against a local port.
+ * Latency, failure injection and throughput limits are configurable so the plugin can be load-tested on a single
+ * machine. Uploaded packages are streamed to a scratch directory, never held in memory.
+ */
+public final class StubPackageManagerServer {
+
+    private static final String LOGIN_PATH = "/crx/packmgr/j_security_check";
+    private static final String LIST_PATH = "/crx/packmgr/list.jsp";
+    private static final String SERVICE_PATH = "/crx/packmgr/service";
+    private static final String PACKAGES_PATH = "/etc/packages/";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final File storageDir;
+    private final Map<String, StoredPackage> packages = new ConcurrentHashMap<String, StoredPackage>();
+    private final Random random = new Random();
+    private final Map<String, List<Long>> timings = new HashMap<String, List<Long>>();
+
+    private volatile long latencyInMs = 0L;
+    private volatile long installTimeInMs = 0L;
+    private volatile double failureRate = 0.0D;
+    private volatile long bytesPerSecond = 0L;
+    private volatile int installLogLines = 10;
+    private volatile int installErrorLines = 0;
+    private volatile boolean available = true;
+
+    private final AtomicInteger failNext = new AtomicInteger();
+    private final AtomicInteger uploads = new AtomicInteger();
+    private final AtomicInteger installs = new AtomicInteger();
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger activeInstalls = new AtomicInteger();
+    private final AtomicInteger maxActiveInstalls = new AtomicInteger();
+
+    public StubPackageManagerServer(File storageDir) throws IOException {
+        this(storageDir, 0);
+    }
+
+    public StubPackageManagerServer(File storageDir, int port) throws IOException {
+        this.storageDir = storageDir;
+        if (!storageDir.isDirectory() && !storageDir.mkdirs()) {
+            throw new IOException("Failed to create storage directory " + storageDir);
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new Dispatcher());
+    }
+
+    public StubPackageManagerServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param latencyInMs fixed delay added before every response
+     */
+    public StubPackageManagerServer setLatencyInMs(long latencyInMs) {
+        this.latencyInMs = latencyInMs;
+        return this;
+    }
+
+    /**
+     * @param installTimeInMs simulated server-side duration of each install, spread over the install log
+     */
+    public StubPackageManagerServer setInstallTimeInMs(long installTimeInMs) {
+        this.installTimeInMs = installTimeInMs;
+        return this;
+    }
+
+    /**
+     * @param failureRate probability between 0 and 1 that any request is answered with a 503
+     */
+    public StubPackageManagerServer setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * @param count number of upcoming requests to answer with a 503, regardless of the failure rate
+     */
+    public StubPackageManagerServer failNextRequests(int count) {
+        this.failNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond throughput cap applied to uploads and downloads, or 0 for unlimited
+     */
+    public StubPackageManagerServer setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public StubPackageManagerServer setInstallLogLines(int installLogLines) {
+        this.installLogLines = installLogLines;
+        return this;
+    }
+
+    public StubPackageManagerServer setInstallErrorLines(int installErrorLines) {
+        this.installErrorLines = installErrorLines;
+        return this;
+    }
+
+    /**
+     * @param available false to make the service readiness check report the package manager as unavailable
+     */
+    public StubPackageManagerServer setAvailable(boolean available) {
+        this.available = available;
+        return this;
+    }
+
+    /**
+     * Places a package on the server as if it had been uploaded, so that it can be downloaded or listed.
+     */
+    public PackId addPackage(File file, boolean installed) throws IOException {
+        PackId packId = PackId.identifyPackage(file);
+        if (packId == null) {
+            throw new IOException("Not a content package: " + file);
+        }
+        StoredPackage stored = new StoredPackage(packId, file);
+        stored.installed = installed;
+        packages.put(getPackagePath(packId), stored);
+        return packId;
+    }
+
+    public int getUploadCount() {
+        return uploads.get();
+    }
+
+    public int getInstallCount() {
+        return installs.get();
+    }
+
+    public int getDownloadCount() {
+        return downloads.get();
+    }
+
+    public int getLoginCount() {
+        return logins.get();
+    }
+
+    public int getMaxConcurrentInstalls() {
+        return maxActiveInstalls.get();
+    }
+
+    static String getPackagePath(PackId packId) {
+        StringBuilder path = new StringBuilder(PACKAGES_PATH);
+        if (packId.getGroup() != null && !packId.getGroup().isEmpty()) {
+            path.append(packId.getGroup()).append("/");
+        }
+        path.append(packId.getName());
+        if (packId.getVersion() != null && !packId.getVersion().isEmpty()) {
+            path.append("-").append(packId.getVersion());
+        }
+        return path.append(".zip").toString();
+    }
+
+    private static final class StoredPackage {
+        final PackId packId;
+        final File file;
+        volatile boolean installed;
+
+        private StoredPackage(PackId packId, File file) {
+            this.packId = packId;
+            this.file = file;
+        }
+    }
+
+    private class Dispatcher implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            final long started = System.currentTimeMillis();
+            String operation = "other";
+            try {
+                if (latencyInMs > 0L) {
+                    Thread.sleep(latencyInMs);
+                }
+
+                if (shouldFail()) {
+                    drain(exchange.getRequestBody());
+                    sendText(exchange, 503, "text/plain", "Service Unavailable");
+                    return;
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+                if (path.startsWith(LOGIN_PATH)) {
+                    operation = "login";
+                    handleLogin(exchange);
+                } else if (path.startsWith(LIST_PATH)) {
+                    operation = "list";
+                    handleList(exchange, params);
+                } else if (path.startsWith(SERVICE_PATH)) {
+                    operation = handleService(exchange, path, params);
+                } else if (path.startsWith(PACKAGES_PATH) && "GET".equals(exchange.getRequestMethod())) {
+                    operation = "download";
+                    handleDownload(exchange, path);
+                } else {
+                    // signature login and anything else the client touches on the way in
+                    if (params.containsKey("sling:authRequestLogin")) {
+                        logins.incrementAndGet();
+                    }
+                    drain(exchange.getRequestBody());
+                    sendText(exchange, 200, "text/plain", "OK");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 500, "text/plain", "Interrupted");
+            } catch (RuntimeException e) {
+                sendText(exchange, 500, "text/plain", String.valueOf(e.getMessage()));
+            } finally {
+                exchange.close();
+                recordTiming(operation, System.currentTimeMillis() - started);
+            }
+        }
+    }
+
+    private void recordTiming(String operation, long elapsed) {
+        synchronized (timings) {
+            List<Long> samples = timings.get(operation);
+            if (samples == null) {
+                samples = new ArrayList<Long>();
+                timings.put(operation, samples);
+            }
+            samples.add(elapsed);
+        }
+    }
+
+    /**
+     * @return a copy of the server-side request durations in milliseconds recorded so far, keyed by operation
+     * (login, list, upload, install, uninstall, delete, download, ready)
+     */
+    public Map<String, List<Long>> getTimings() {
+        Map<String, List<Long>> copy = new HashMap<String, List<Long>>();
+        synchronized (timings) {
+            for (Map.Entry<String, List<Long>> entry : timings.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<Long>(entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    public void resetTimings() {
+        synchronized (timings) {
+            timings.clear();
+        }
+    }
+
+    private boolean shouldFail() {
+        if (failNext.get() > 0 && failNext.getAndDecrement() > 0) {
+            return true;
+        }
+        synchronized (random) {
+            return failureRate > 0.0D && random.nextDouble() < failureRate;
+        }
+    }
+
+    private void handleLogin(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        logins.incrementAndGet();
+        exchange.getResponseHeaders().add("Set-Cookie", "login-token=stub; Path=/");
+        sendText(exchange, 200, "text/plain", "OK");
+    }
+
+    private void handleList(HttpExchange exchange, Map<String, String> params) throws IOException {
+        drain(exchange.getRequestBody());
+        String queryPath = params.get("path");
+        String query = params.get("q");
+
+        List<StoredPackage> matches = new ArrayList<StoredPackage>();
+        for (Map.Entry<String, StoredPackage> entry : packages.entrySet()) {
+            if (queryPath != null && !queryPath.isEmpty() && !entry.getKey().equals(queryPath)) {
+                continue;
+            }
+            if (query != null && !query.isEmpty() && !entry.getKey().contains(query)) {
+                continue;
+            }
+            matches.add(entry.getValue());
+        }
+
+        StringBuilder json = new StringBuilder("{\"results\":[");
+        boolean first = true;
+        for (StoredPackage stored : matches) {
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            PackId packId = stored.packId;
+            json.append("{\"pid\":\"").append(packId.toString())
+                    .append("\",\"path\":\"").append(getPackagePath(packId))
+                    .append("\",\"group\":\"").append(packId.getGroup())
+                    .append("\",\"name\":\"").append(packId.getName())
+                    .append("\",\"downloadName\":\"").append(stored.file.getName())
+                    .append("\",\"version\":\"").append(packId.getVersion())
+                    .append("\",\"size\":").append(stored.file.length())
+                    .append(",\"lastModified\":").append(stored.file.lastModified())
+                    .append(",\"hasSnapshot\":").append(stored.installed)
+                    .append(",\"needsRewrap\":false}");
+        }
+        json.append("],\"total\":").append(matches.size()).append("}");
+        sendText(exchange, 200, "application/json", json.toString());
+    }
+
+    private String handleService(HttpExchange exchange, String path, Map<String, String> params) throws IOException,
+            InterruptedException {
+        boolean html = path.endsWith(".html") || path.contains(".html/");
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Map<String, String> fields = new HashMap<String, String>(params);
+        File uploaded = null;
+
+        if (contentType != null && contentType.startsWith("multipart/form-data")) {
+            uploaded = readMultipart(exchange.getRequestBody(), contentType, fields);
+        } else if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            fields.putAll(parseQuery(readString(exchange.getRequestBody())));
+        } else {
+            drain(exchange.getRequestBody());
+        }
+
+        String cmd = fields.get("cmd");
+        if (cmd == null) {
+            // readiness probe
+            if (available) {
+                sendText(exchange, 200, "text/html", "<crx version=\"2.4.0\" user=\"admin\" workspace=\"crx.default\">"
+                        + "<response><status code=\"200\">ok</status></response></crx>");
+            } else {
+                sendText(exchange, 503, "text/plain", "Service Unavailable");
+            }
+            return "ready";
+        }
+
+        if ("upload".equals(cmd)) {
+            handleUpload(exchange, uploaded, Boolean.parseBoolean(fields.get("force")));
+            return cmd;
+        }
+
+        String packagePath = path.substring(path.indexOf(SERVICE_PATH) + SERVICE_PATH.length());
+        int etc = packagePath.indexOf(PACKAGES_PATH);
+        StoredPackage stored = etc >= 0 ? packages.get(packagePath.substring(etc)) : null;
+        if (stored == null) {
+            sendResult(exchange, html, false, "Package not found: " + packagePath);
+            return cmd;
+        }
+
+        if ("install".equals(cmd)) {
+            handleInstall(exchange, stored, html);
+        } else if ("uninstall".equals(cmd)) {
+            stored.installed = false;
+            sendResult(exchange, html, true, "Package uninstalled");
+        } else if ("delete".equals(cmd)) {
+            packages.remove(getPackagePath(stored.packId));
+            sendResult(exchange, html, true, "Package deleted");
+        } else {
+            sendResult(exchange, html, false, "Unsupported command: " + cmd);
+        }
+        return cmd;
+    }
+
+    private void handleUpload(HttpExchange exchange, File uploaded, boolean force) throws IOException {
+        uploads.incrementAndGet();
+        if (uploaded == null) {
+            sendResult(exchange, false, false, "No package in request");
+            return;
+        }
+
+        PackId packId = PackId.identifyPackage(uploaded);
+        if (packId == null) {
+            uploaded.delete();
+            sendResult(exchange, false, false, "Uploaded file is not a content package");
+            return;
+        }
+
+        String packagePath = getPackagePath(packId);
+        StoredPackage existing = packages.get(packagePath);
+        if (existing != null && !force) {
+            uploaded.delete();
+            sendResult(exchange, false, false, "Package already exists: " + packagePath);
+            return;
+        }
+
+        packages.put(packagePath, new StoredPackage(packId, uploaded));
+        if (existing != null && !existing.file.equals(uploaded)) {
+            existing.file.delete();
+        }
+        sendText(exchange, 200, "application/json",
+                "{\"success\":true,\"msg\":\"Package uploaded\",\"path\":\"" + packagePath + "\"}");
+    }
+
+    private void handleInstall(HttpExchange exchange, StoredPackage stored, boolean html) throws IOException,
+            InterruptedException {
+        installs.incrementAndGet();
+        int active = activeInstalls.incrementAndGet();
+        try {
+            int max = maxActiveInstalls.get();
+            while (active > max && !maxActiveInstalls.compareAndSet(max, active)) {
+                max = maxActiveInstalls.get();
+            }
+
+            int lines = Math.max(installLogLines, 0) + Math.max(installErrorLines, 0);
+            long pause = lines > 0 ? installTimeInMs / lines : installTimeInMs;
+
+            if (!html) {
+                if (installTimeInMs > 0L) {
+                    Thread.sleep(installTimeInMs);
+                }
+                stored.installed = true;
+                sendResult(exchange, false, true, "Package installed");
+                return;
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", "text/html;charset=utf-8");
+            exchange.sendResponseHeaders(200, 0L);
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+            writer.println("<html><head><title>Installing " + stored.packId + "</title></head><body><pre>");
+            writer.println("Installing content");
+            writer.flush();
+            for (int i = 0; i < installLogLines; i++) {
+                writer.println("<span class=\"A\"><b>A</b>&nbsp;/content/stub/" + stored.packId.getName()
+                        + "/node" + i + " ()</span><br>");
+                writer.flush();
+                if (pause > 0L) {
+                    Thread.sleep(pause);
+                }
+            }
+            for (int i = 0; i < installErrorLines; i++) {
+                writer.println("<span class=\"E\"><b>E</b>&nbsp;/content/stub/" + stored.packId.getName()
+                        + "/error" + i + " (javax.jcr.nodetype.ConstraintViolationException: stub)</span><br>");
+                writer.flush();
+                if (pause > 0L) {
+                    Thread.sleep(pause);
+                }
+            }
+            if (installLogLines + installErrorLines == 0 && installTimeInMs > 0L) {
+                Thread.sleep(installTimeInMs);
+            }
+            stored.installed = true;
+            if (installErrorLines > 0) {
+                writer.println("Package imported (with errors, check logs!)");
+            } else {
+                writer.println("Package imported.");
+            }
+            writer.println("</pre><textarea>{\"success\":true,\"msg\":\"Package installed\"}</textarea></body></html>");
+            writer.flush();
+        } finally {
+            activeInstalls.decrementAndGet();
+        }
+    }
+
+    private void handleDownload(HttpExchange exchange, String path) throws IOException, InterruptedException {
+        StoredPackage stored = packages.get(path);
+        if (stored == null) {
+            sendText(exchange, 404, "text/plain", "Not Found");
+            return;
+        }
+
+        downloads.incrementAndGet();
+        exchange.getResponseHeaders().add("Content-Type", "application/zip");
+        exchange.getResponseHeaders().add("Content-Disposition",
+                "attachment; filename=\"" + stored.file.getName() + "\"");
+        exchange.sendResponseHeaders(200, stored.file.length());
+        InputStream in = new FileInputStream(stored.file);
+        try {
+            copyThrottled(in, exchange.getResponseBody());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void sendResult(HttpExchange exchange, boolean html, boolean success, String message) throws IOException {
+        String json = "{\"success\":" + success + ",\"msg\":\"" + message.replace("\"", "'") + "\"}";
+        if (html) {
+            sendText(exchange, 200, "text/html", "<html><body><pre>" + message + "</pre><textarea>" + json
+                    + "</textarea></body></html>");
+        } else {
+            sendText(exchange, 200, "application/json", json);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", contentType + ";charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Streams a multipart request body, writing the "package" part to a file in the storage directory and
+     * collecting any simple fields. Only one boundary-sized window of the body is held in memory at a time.
+     */
+    private File readMultipart(InputStream body, String contentType, Map<String, String> fields)
+            throws IOException, InterruptedException {
+        int idx = contentType.indexOf("boundary=");
+        if (idx < 0) {
+            drain(body);
+            return null;
+        }
+        String boundary = contentType.substring(idx + "boundary=".length()).trim();
+        if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+
+        InputStream in = new BufferedInputStream(new ThrottledInputStream(body), 64 * 1024);
+        byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+        // skip the preamble up to and including the first boundary line
+        skipPast(in, ("--" + boundary).getBytes("ISO-8859-1"));
+        readLine(in);
+
+        File uploaded = null;
+        while (true) {
+            String disposition = null;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("content-disposition:")) {
+                    disposition = line;
+                }
+            }
+            if (line == null) {
+                break;
+            }
+
+            String name = headerParam(disposition, "name");
+            String filename = headerParam(disposition, "filename");
+            if (filename != null) {
+                File target = File.createTempFile("upload", ".zip", storageDir);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+                try {
+                    copyUntil(in, out, delimiter);
+                } finally {
+                    out.close();
+                }
+                if ("package".equals(name) || uploaded == null) {
+                    uploaded = target;
+                } else {
+                    target.delete();
+                }
+            } else {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                copyUntil(in, value, delimiter);
+                if (name != null) {
+                    fields.put(name, value.toString("UTF-8"));
+                }
+            }
+
+            String tail = readLine(in);
+            if (tail == null || tail.startsWith("--")) {
+                break;
+            }
+        }
+        drain(in);
+        return uploaded;
+    }
+
+    private static String headerParam(String header, String param) {
+        if (header == null) {
+            return null;
+        }
+        String key = " " + param + "=\"";
+        int start = header.indexOf(key);
+        if (start < 0) {
+            key = ";" + param + "=\"";
+            start = header.indexOf(key);
+        }
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        int end = header.indexOf('"', start);
+        return end > start ? header.substring(start, end) : "";
+    }
+
+    private static void skipPast(InputStream in, byte[] marker) throws IOException {
+        copyUntil(in, null, marker);
+    }
+
+    /**
+     * Copies bytes to out until the delimiter is matched, consuming the delimiter itself. A ring buffer the size of
+     * the delimiter holds back the bytes that might still turn out to be part of it.
+     */
+    private static void copyUntil(InputStream in, OutputStream out, byte[] delimiter) throws IOException {
+        final int n = delimiter.length;
+        final byte[] ring = new byte[n];
+        final byte last = delimiter[n - 1];
+        int pos = 0;
+        int filled = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (filled == n) {
+                if (out != null) {
+                    out.write(ring[pos]);
+                }
+            } else {
+                filled++;
+            }
+            ring[pos] = (byte) b;
+            pos = (pos + 1) % n;
+            if (filled == n && (byte) b == last && matches(ring, pos, delimiter)) {
+                return;
+            }
+        }
+        if (out != null) {
+            for (int i = 0; i < filled; i++) {
+                out.write(ring[(pos - filled + i + n) % n]);
+            }
+        }
+    }
+
+    private static boolean matches(byte[] ring, int start, byte[] delimiter) {
+        for (int i = 0; i < delimiter.length; i++) {
+            if (ring[(start + i) % ring.length] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            bytes.write(buf, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        while (in.read(buf) >= 0) {
+            /* discard */
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } else if (!pair.isEmpty()) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            }
+        }
+        return params;
+    }
+
+    private void copyThrottled(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        byte[] buf = new byte[64 * 1024];
+        long started = System.currentTimeMillis();
+        long total = 0L;
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+            total += read;
+            throttle(started, total);
+        }
+        out.flush();
+    }
+
+    private void throttle(long started, long total) throws InterruptedException {
+        long limit = bytesPerSecond;
+        if (limit > 0L) {
+            long expected = (total * 1000L) / limit;
+            long elapsed = System.currentTimeMillis() - started;
+            if (expected > elapsed) {
+                Thread.sleep(expected - elapsed);
+            }
+        }
+    }
+
+    private class ThrottledInputStream extends InputStream {
+        private final InputStream wrapped;
+        private final long started = System.currentTimeMillis();
+        private long total = 0L;
+
+        private ThrottledInputStream(InputStream wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = wrapped.read();
+            if (b >= 0) {
+                account(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = wrapped.read(b, off, len);
+            if (read > 0) {
+                account(read);
+            }
+            return read;
+        }
+
+        private void account(int read) throws IOException {
+            total += read;
+            try {
+                throttle(started, total);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttling upload");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            wrapped.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to <http://unlicense.org/>
+ */
+
+package org.jenkinsci.plugins.graniteclient;
+
+import hudson.util.StreamTaskListener;
+import net.adamcin.granite.client.packman.PackId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferGovernorTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void testOffByDefault() {
+        assertEquals(0L, new GraniteClientConfig("http://default.example.com", null, 0L, 0L).getTransferBudget());
+    }
+
+    @Test
+    public void testUnknownDownloadTakesABoundedEstimate() throws Exception {
+        GraniteClientConfig config = newConfig("http://unknown-size.example.com", 1024L);
+        StreamTaskListener listener = new StreamTaskListener(System.out);
+
+        TransferGovernor.Ticket ticket = TransferGovernor.admitDownload(
+                config, PackId.createPackId("test", "unknown", "1.0"), listener);
+        try {
+            assertEquals(960L * MB, TransferGovernor.getAvailableBudget());
+        } finally {
+            ticket.complete(-1L);
+        }
+        assertEquals(1024L * MB, TransferGovernor.getAvailableBudget());
+    }
+
+    @Test
+    public void testSuspendedTicketGivesItsBudgetBack() throws Exception {
+        GraniteClientConfig config = newConfig("http://retried.example.com", 100L);
+        StreamTaskListener listener = new StreamTaskListener(System.out);
+
+        TransferGovernor.Ticket ticket = TransferGovernor.admitUpload(config, 90L * MB, listener);
+        assertEquals(10L * MB, TransferGovernor.getAvailableBudget());
+        ticket.suspend();
+        assertEquals(100L * MB, TransferGovernor.getAvailableBudget());
+        ticket.resume(listener);
+        assertEquals(10L * MB, TransferGovernor.getAvailableBudget());
+
+        ticket.suspend();
+        ticket.complete(90L * MB);
+        assertEquals(100L * MB, TransferGovernor.getAvailableBudget());
+    }
+
+    private static GraniteClientConfig newConfig(String baseUrl, long budgetInMb) {
+        GraniteAHCFactory factory = GraniteAHCFactory.getFactoryInstance();
+        factory.setTransferBudgetInMb(budgetInMb);
+        try {
+            return new GraniteClientConfig(baseUrl, null, 0L, 0L);
+        } finally {
+            factory.setTransferBudgetInMb(0L);
+        }
+    }
+}